@@ -2,105 +2,211 @@ package jp.shiguredo.react.webrtckit;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.hardware.camera2.CameraManager;
+import android.os.Build;
+import android.os.Handler;
 import android.util.Log;
 import android.util.Pair;
 
 import org.webrtc.Camera1Enumerator;
+import org.webrtc.Camera2Enumerator;
 import org.webrtc.CameraEnumerationAndroid;
+import org.webrtc.CameraEnumerator;
+import org.webrtc.CameraVideoCapturer;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoSource;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
+/**
+ * カメラデバイスの選択とキャプチャを管理します。
+ * <p>
+ * 端末が Camera2 API に対応している場合は Camera2Enumerator を、対応していない場合は Camera1Enumerator を使います。
+ * Camera2 はキャプチャ開始までの時間が短く、フレーム間隔も安定しており、常にテクスチャで出力します。
+ * デバイス名の形式はバックエンドごとに異なるため、1 つのインスタンスでは常に同じバックエンドを使います。
+ * <p>
+ * デバイスの一覧とキャプチャフォーマットは WebRTCCameraCatalog にキャッシュし、
+ * カメラの追加や画面構成の変化 (折りたたみ端末の開閉など) を検知した場合のみ列挙し直します。
+ */
 final class WebRTCCamera {
 
+    interface SwitchListener {
+        /**
+         * カメラの切り替えが完了したときに、カメラのスレッドで呼び出されます。
+         */
+        void onSwitched(@NonNull String deviceName);
+
+        /**
+         * カメラの切り替えに失敗したときに、カメラのスレッドで呼び出されます。キャプチャは元のカメラで継続します。
+         */
+        void onError(@NonNull String message);
+    }
+
     @NonNull
-    private final Camera1Enumerator cameraEnumerator;
+    private final CameraEnumerator cameraEnumerator;
+    /**
+     * switchCamera() の完了はカメラのスレッドから通知されるため volatile にしています。
+     */
+    @Nullable
+    private volatile Pair<VideoSource, VideoCapturer> runningCapturer = null;
     @Nullable
-    private Pair<VideoSource, VideoCapturer> runningCapturer = null;
+    private volatile WebRTCCameraDeviceCandidate runningCandidate = null;
+    /**
+     * 実行中のキャプチャの出力の指定です。0 以下の場合は指定なしとして、キャプチャの設定をそのまま使います。
+     */
+    private double outputAspectRatio = -1;
+    private int outputWidth = -1;
+    private int outputHeight = -1;
+    private int outputFramerate = -1;
 
-    WebRTCCamera() {
-        this.cameraEnumerator = new Camera1Enumerator(true);
-    }
+    @NonNull
+    private final Object catalogLock = new Object();
+    @Nullable
+    private volatile WebRTCCameraCatalog catalog = null;
 
     /**
-     * 指定された条件を満たす最適なカメラデバイスとキャプチャフォーマットをまとめて、候補として返します。
+     * 以下のフィールドは startMonitoring() / stopMonitoring() でのみ変更します。
      */
     @Nullable
-    WebRTCCameraDeviceCandidate getSuitableDeviceCandidate(@NonNull final WebRTCMediaStreamConstraints.Video video) {
-        return getSuitableDeviceCandidate(video.facingMode, video.width, video.height, video.frameRate);
+    private Context monitoringContext = null;
+    @Nullable
+    private ComponentCallbacks configurationCallbacks = null;
+    @Nullable
+    private AvailabilityMonitor availabilityMonitor = null;
+
+    WebRTCCamera(@NonNull final Context context) {
+        this.cameraEnumerator = createCameraEnumerator(context);
     }
 
-    @Nullable
-    private WebRTCCameraDeviceCandidate getSuitableDeviceCandidate(@Nullable final String facingMode,
-                                                                   final int width,
-                                                                   final int height,
-                                                                   final int framerate) {
-        if (facingMode == null) {
-            return null;
-        }
-        final boolean isFrontFacing = facingMode.equals("user");
-        // 各要素のデバイス決定における重要度
-        // 1. facingMode - 必須。一致しない限りマッチさせない。
-        // 2. width*height - 最も近いものを選択。
-        // 3. framerate - 最終決定の際に考慮する。基本的には無視するが、万一2.までの条件を満たすデバイスが複数あった場合、framerateを満たすデバイスを優先する。
-        final List<WebRTCCameraDeviceCandidate> candidates = new ArrayList<>();
-        for (final String name : cameraEnumerator.getDeviceNames()) {
-            if (cameraEnumerator.isFrontFacing(name) != isFrontFacing) {
-                continue;
-            }
-            WebRTCCameraDeviceCandidate currentCandidate = null;
-            for (final CameraEnumerationAndroid.CaptureFormat format : cameraEnumerator.getSupportedFormats(name)) {
-                if (currentCandidate == null) {
-                    currentCandidate = new WebRTCCameraDeviceCandidate(name, format, Integer.MAX_VALUE);
-                } else {
-                    int score = Math.abs(width - format.width) + Math.abs(height - format.height);
-                    if (score < currentCandidate.score) {
-                        currentCandidate = new WebRTCCameraDeviceCandidate(name, format, score);
+    /**
+     * Camera2 API に対応していて、かつ Camera2Enumerator でキャプチャフォーマットを取得できるカメラがある場合のみ Camera2Enumerator を返します。
+     * Camera2Enumerator.isSupported() は LEGACY レベルのカメラが 1 つでもあれば false を返します。
+     * XXX: 対応していると報告しつつフォーマットを列挙できない端末があるため、その場合も Camera1 にフォールバックする
+     */
+    @NonNull
+    private static CameraEnumerator createCameraEnumerator(@NonNull final Context context) {
+        try {
+            if (Camera2Enumerator.isSupported(context)) {
+                final Camera2Enumerator camera2Enumerator = new Camera2Enumerator(context);
+                for (final String name : camera2Enumerator.getDeviceNames()) {
+                    final List<CameraEnumerationAndroid.CaptureFormat> formats = camera2Enumerator.getSupportedFormats(name);
+                    if (formats != null && !formats.isEmpty()) {
+                        Log.d("WebRTCCamera", "createCameraEnumerator() - use Camera2");
+                        return camera2Enumerator;
                     }
                 }
             }
-            if (currentCandidate != null) {
-                candidates.add(currentCandidate);
+        } catch (RuntimeException e) {
+            // CameraManager が例外を投げる端末があるため、ここで握りつぶして Camera1 を使う
+            Log.w("WebRTCCamera", "createCameraEnumerator() - failed to enumerate Camera2 devices", e);
+        }
+        Log.d("WebRTCCamera", "createCameraEnumerator() - use Camera1");
+        return new Camera1Enumerator(true);
+    }
+
+    /**
+     * キャッシュしているカメラデバイスの一覧を返します。まだ列挙していない場合は、呼び出したスレッドで列挙します。
+     */
+    @NonNull
+    WebRTCCameraCatalog getCatalog() {
+        final WebRTCCameraCatalog current = catalog;
+        if (current != null) {
+            return current;
+        }
+        synchronized (catalogLock) {
+            if (catalog == null) {
+                catalog = WebRTCCameraCatalog.load(cameraEnumerator);
             }
+            return catalog;
         }
-        if (candidates.isEmpty()) {
-            return null;
+    }
+
+    /**
+     * カメラデバイスを列挙し直します。
+     */
+    private void reloadCatalog() {
+        synchronized (catalogLock) {
+            catalog = WebRTCCameraCatalog.load(cameraEnumerator);
         }
-        // scoreでソートした先頭が最善候補。基本的にはこの最善候補を返すが、最善候補がframerate要件を満たせず、
-        // かつ最善候補と同スコアの別候補が存在してそちらがframerate要件を満たせる場合のみ、そちらの代替候補を利用する。
-        Collections.sort(candidates);
-        final WebRTCCameraDeviceCandidate bestCandidate = candidates.get(0);
-        for (final WebRTCCameraDeviceCandidate candidate : candidates) {
-            if (bestCandidate.score < candidate.score) {
-                break;
+    }
+
+    /**
+     * カメラの追加と画面構成の変化の監視を開始します。検知した場合は handler のスレッドで列挙し直します。
+     */
+    synchronized void startMonitoring(@NonNull final Context context, @NonNull final Handler handler) {
+        if (monitoringContext != null) return;
+        monitoringContext = context.getApplicationContext();
+
+        final Configuration initialConfiguration = new Configuration(monitoringContext.getResources().getConfiguration());
+        configurationCallbacks = new ComponentCallbacks() {
+            @NonNull
+            private Configuration lastConfiguration = initialConfiguration;
+
+            @Override
+            public void onConfigurationChanged(@NonNull final Configuration newConfiguration) {
+                // 画面の回転では列挙し直さず、折りたたみ端末の開閉など画面の大きさそのものが変わった場合のみ列挙し直す
+                final int diff = lastConfiguration.diff(newConfiguration);
+                lastConfiguration = new Configuration(newConfiguration);
+                if ((diff & (Configuration.CONFIG_SCREEN_LAYOUT | Configuration.CONFIG_SMALLEST_SCREEN_SIZE)) != 0) {
+                    Log.d("WebRTCCamera", "onConfigurationChanged() - reload catalog");
+                    handler.post(WebRTCCamera.this::reloadCatalog);
+                }
+            }
+
+            @Override
+            public void onLowMemory() {
+                // Do nothing
             }
-            if (candidate.format.framerate.min <= framerate && framerate <= candidate.format.framerate.max) {
-                return candidate;
+        };
+        monitoringContext.registerComponentCallbacks(configurationCallbacks);
+
+        // CameraManager は API Level 21 以上でのみ使える
+        if (Build.VERSION.SDK_INT >= 21 && cameraEnumerator instanceof Camera2Enumerator) {
+            final CameraManager cameraManager = (CameraManager) monitoringContext.getSystemService(Context.CAMERA_SERVICE);
+            if (cameraManager != null) {
+                availabilityMonitor = new AvailabilityMonitor(cameraManager);
+                cameraManager.registerAvailabilityCallback(availabilityMonitor, handler);
             }
         }
-        return bestCandidate;
+    }
+
+    synchronized void stopMonitoring() {
+        if (monitoringContext == null) return;
+        if (configurationCallbacks != null) {
+            monitoringContext.unregisterComponentCallbacks(configurationCallbacks);
+            configurationCallbacks = null;
+        }
+        if (Build.VERSION.SDK_INT >= 21 && availabilityMonitor != null) {
+            availabilityMonitor.cameraManager.unregisterAvailabilityCallback(availabilityMonitor);
+            availabilityMonitor = null;
+        }
+        monitoringContext = null;
     }
 
     /**
-     * 指定された候補を利用してVideoCapturerを新規に生成します。
-     * 生成されたVideoCapturerはこの段階では初期化されておらず、またキャプチャも開始していません。
+     * 指定された条件を満たす最適なカメラデバイスとキャプチャフォーマットをまとめて、候補として返します。
+     * 選択の方法は WebRTCVideoConstraintSolver を参照してください。
+     *
+     * @return カメラデバイスが 1 つもない場合は null
+     * @throws WebRTCVideoConstraintSolver.OverconstrainedException 条件を満たすカメラデバイスがない場合
      */
-    @NonNull
-    VideoCapturer createCapturer(@NonNull final WebRTCCameraDeviceCandidate candidate) {
-        return cameraEnumerator.createCapturer(candidate.deviceName, null);
+    @Nullable
+    WebRTCCameraDeviceCandidate getSuitableDeviceCandidate(@NonNull final WebRTCMediaStreamConstraints.Video video)
+            throws WebRTCVideoConstraintSolver.OverconstrainedException {
+        return WebRTCVideoConstraintSolver.solve(getCatalog(), video);
     }
 
     /**
-     * 適当なVideoCapturerを新規に生成します。
+     * 指定された候補を利用してVideoCapturerを新規に生成します。
      * 生成されたVideoCapturerはこの段階では初期化されておらず、またキャプチャも開始していません。
      */
     @NonNull
-    VideoCapturer createCapturerFromAllDevices() {
-        // XXX: 万一カメラデバイスが一切ない状態だとIOOBで落ちますが、通常まずありえないと思うので良しとしてます
-        return cameraEnumerator.createCapturer(cameraEnumerator.getDeviceNames()[0], null);
+    VideoCapturer createCapturer(@NonNull final WebRTCCameraDeviceCandidate candidate) {
+        return cameraEnumerator.createCapturer(candidate.deviceName, null);
     }
 
     /**
@@ -110,33 +216,199 @@ final class WebRTCCamera {
      */
     void startCapture(@NonNull final VideoSource source,
                       @NonNull final VideoCapturer capturer,
-                      @NonNull final WebRTCCameraDeviceCandidate candidate,
-                      @NonNull final WebRTCMediaStreamConstraints.Video video) {
+                      @NonNull final WebRTCCameraDeviceCandidate candidate) {
         if (runningCapturer != null) {
             return;
         }
-        final int framerate = Math.max(candidate.format.framerate.min, Math.min(video.frameRate, candidate.format.framerate.max));
-        capturer.startCapture(candidate.format.width, candidate.format.height, framerate);
+        capturer.startCapture(candidate.format.width, candidate.format.height, candidate.framerate);
         runningCapturer = new Pair<>(source, capturer);
+        runningCandidate = candidate;
+        outputAspectRatio = -1;
+        outputWidth = -1;
+        outputHeight = -1;
+        outputFramerate = -1;
+    }
+
+    /**
+     * 実行中のキャプチャの出力を、指定されたアスペクト比に切り抜きます。
+     * source が実行中のキャプチャのものでない場合 (すでに停止したキャプチャなど) は何もしません。
+     *
+     * @param aspectRatio 幅 / 高さ。端末の向きに合わせて縦横を入れ替えるので、1 未満の値は逆数として扱います。0 以下の場合は切り抜きません
+     */
+    void setOutputAspectRatio(@NonNull final VideoSource source, final double aspectRatio) {
+        if (!isRunning(source)) return;
+        outputAspectRatio = (aspectRatio > 0 && aspectRatio < 1) ? 1 / aspectRatio : aspectRatio;
+        applyOutputFormat();
+    }
+
+    /**
+     * 実行中のキャプチャの出力を、指定された大きさとフレームレートに調整します。
+     * 指定された大きさとアスペクト比が異なる場合は切り抜いてから縮小します。拡大はしません。
+     * source が実行中のキャプチャのものでない場合は何もしません。
+     *
+     * @param width 0 以下の場合はキャプチャの大きさを使います
+     * @param height 0 以下の場合はキャプチャの大きさを使います
+     * @param framerate 0 以下の場合はキャプチャのフレームレートを使います
+     */
+    void setOutputFormat(@NonNull final VideoSource source, final int width, final int height, final int framerate) {
+        if (!isRunning(source)) return;
+        outputWidth = width;
+        outputHeight = height;
+        outputFramerate = framerate;
+        applyOutputFormat();
+    }
+
+    /**
+     * 実行中のキャプチャのカメラを、指定された向きのカメラに切り替えます。
+     * VideoSource と VideoCapturer はそのまま使い続けるので、トラックの作り直しや再ネゴシエーションは不要です。
+     * キャプチャの大きさとフレームレートは切り替え前の設定を引き継ぎます。
+     *
+     * @return source が実行中のキャプチャのものでない場合は false
+     * @throws WebRTCVideoConstraintSolver.OverconstrainedException 指定された向きのカメラがない場合
+     */
+    boolean switchCamera(@NonNull final VideoSource source,
+                         @NonNull final String facingMode,
+                         @NonNull final SwitchListener listener)
+            throws WebRTCVideoConstraintSolver.OverconstrainedException {
+        // stopCapture() が並行して呼ばれても参照が null にならないよう、一度だけ読み出して使う
+        final Pair<VideoSource, VideoCapturer> capturer = runningCapturer;
+        final WebRTCCameraDeviceCandidate currentCandidate = runningCandidate;
+        if (capturer == null || currentCandidate == null || capturer.first != source
+                || !(capturer.second instanceof CameraVideoCapturer)) {
+            return false;
+        }
+
+        // 現在のカメラが指定された向きであればそのまま使い、そうでなければ指定された向きの最初のカメラを使う
+        WebRTCCameraCatalog.Device target = null;
+        for (final WebRTCCameraCatalog.Device device : getCatalog().devices) {
+            final boolean isMatched = facingMode.equals("user") ? device.isFrontFacing
+                    : (facingMode.equals("environment") && device.isBackFacing);
+            if (!isMatched) continue;
+            if (device.name.equals(currentCandidate.deviceName)) {
+                listener.onSwitched(device.name);
+                return true;
+            }
+            if (target == null) {
+                target = device;
+            }
+        }
+        if (target == null) {
+            throw new WebRTCVideoConstraintSolver.OverconstrainedException("facingMode");
+        }
+
+        final String targetName = target.name;
+        ((CameraVideoCapturer) capturer.second).switchCamera(new CameraVideoCapturer.CameraSwitchHandler() {
+            @Override
+            public void onCameraSwitchDone(boolean isFrontCamera) {
+                // 切り替えている間にキャプチャが停止・再開された場合は、新しいキャプチャの状態を上書きしない
+                if (runningCapturer == capturer) {
+                    runningCandidate = new WebRTCCameraDeviceCandidate(targetName,
+                            currentCandidate.format,
+                            currentCandidate.framerate,
+                            currentCandidate.distance,
+                            currentCandidate.isCoveringIdealSize);
+                }
+                listener.onSwitched(targetName);
+            }
+
+            @Override
+            public void onCameraSwitchError(String errorDescription) {
+                listener.onError((errorDescription != null) ? errorDescription : "failed to switch camera");
+            }
+        }, targetName);
+        return true;
+    }
+
+    private boolean isRunning(@NonNull final VideoSource source) {
+        return runningCapturer != null && runningCapturer.first == source && runningCandidate != null;
+    }
+
+    /**
+     * 出力の指定を VideoSource.adaptOutputFormat() に反映します。
+     * エンコーダーに渡る前にソースで一度だけ切り抜きと縮小を行うので、UI で切り抜かれる領域をエンコードせずに済みます。
+     */
+    private void applyOutputFormat() {
+        if (runningCapturer == null || runningCandidate == null) return;
+        final CameraEnumerationAndroid.CaptureFormat format = runningCandidate.format;
+        // adaptOutputFormat(width, height, fps) は長辺と短辺で指定し、端末の向きに応じて縦横を入れ替える
+        int longSide = Math.max(format.width, format.height);
+        int shortSide = Math.min(format.width, format.height);
+        if (outputWidth > 0 && outputHeight > 0) {
+            longSide = Math.min(longSide, Math.max(outputWidth, outputHeight));
+            shortSide = Math.min(shortSide, Math.min(outputWidth, outputHeight));
+        }
+        if (outputAspectRatio > 0) {
+            if ((double) longSide / shortSide > outputAspectRatio) {
+                longSide = (int) Math.round(shortSide * outputAspectRatio);
+            } else {
+                shortSide = (int) Math.round(longSide / outputAspectRatio);
+            }
+        }
+        final int framerate = (outputFramerate > 0) ? Math.min(outputFramerate, runningCandidate.framerate) : runningCandidate.framerate;
+        Log.d("WebRTCCamera", "applyOutputFormat() - " + longSide + "x" + shortSide + "@" + framerate);
+        runningCapturer.first.adaptOutputFormat(longSide, shortSide, framerate);
     }
 
     /**
      * 現在実行中のキャプチャを停止します。
      * まだキャプチャが開始されていない場合には何もしません。
+     *
+     * @return 停止して破棄した VideoSource。キャプチャが開始されていない場合は null
      */
-    void stopCapture() {
-        if (runningCapturer == null) {
-            return;
+    @Nullable
+    VideoSource stopCapture() {
+        final Pair<VideoSource, VideoCapturer> capturer = runningCapturer;
+        if (capturer == null) {
+            return null;
         }
+        final VideoSource source = capturer.first;
         try {
-            runningCapturer.second.stopCapture();
-            runningCapturer.first.dispose();
-            runningCapturer.second.dispose();
+            capturer.second.stopCapture();
+            capturer.first.dispose();
+            capturer.second.dispose();
         } catch (InterruptedException e) {
             // Squash the exception here
             Log.e("WebRTCCamera", "stopCapture()", e);
         } finally {
             runningCapturer = null;
+            runningCandidate = null;
+        }
+        return source;
+    }
+
+    /**
+     * CaptureFormat.FramerateRange は Camera1 / Camera2 のどちらでも fps の 1000 倍の値なので、fps に変換して返します。
+     */
+    static int minFramerate(@NonNull final CameraEnumerationAndroid.CaptureFormat format) {
+        return (format.framerate.min + 999) / 1000;
+    }
+
+    static int maxFramerate(@NonNull final CameraEnumerationAndroid.CaptureFormat format) {
+        return format.framerate.max / 1000;
+    }
+
+    /**
+     * 新しいカメラが利用可能になった場合 (外付けのカメラが接続された場合など) に列挙し直します。
+     * XXX: onCameraUnavailable() は他のアプリや自身がカメラを開いた場合にも呼ばれ、取り外しと区別できないため無視する
+     *      取り外されたカメラを選択した場合はキャプチャの開始に失敗する
+     */
+    @RequiresApi(21)
+    private final class AvailabilityMonitor extends CameraManager.AvailabilityCallback {
+        @NonNull
+        final CameraManager cameraManager;
+
+        AvailabilityMonitor(@NonNull final CameraManager cameraManager) {
+            this.cameraManager = cameraManager;
+        }
+
+        @Override
+        public void onCameraAvailable(@NonNull final String cameraId) {
+            // registerAvailabilityCallback() の直後には、その時点で利用可能なすべてのカメラについて呼ばれる
+            // まだ一度も列挙していない場合は、最初の列挙で含まれるので無視する
+            final WebRTCCameraCatalog current = catalog;
+            if (current == null || current.getDevice(cameraId) != null) return;
+            Log.d("WebRTCCamera", "onCameraAvailable() - reload catalog - cameraId=" + cameraId);
+            reloadCatalog();
         }
     }
 }
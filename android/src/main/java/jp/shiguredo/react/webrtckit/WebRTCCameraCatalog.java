@@ -0,0 +1,124 @@
+package jp.shiguredo.react.webrtckit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.webrtc.CameraEnumerationAndroid;
+import org.webrtc.CameraEnumerator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * カメラデバイスの一覧と、各デバイスのキャプチャフォーマットを保持します。
+ * <p>
+ * Camera1 では getSupportedFormats() のたびにカメラを開いてパラメーターを取得するため、列挙には数十から数百ミリ秒かかります。
+ * そのため一度だけ列挙して WebRTCCamera がキャッシュし、getUserMedia() のたびに列挙しないようにしています。
+ * 生成後は変更しないので、どのスレッドから参照しても構いません。
+ */
+final class WebRTCCameraCatalog {
+
+    static final class Device {
+        @NonNull
+        final String name;
+        final boolean isFrontFacing;
+        final boolean isBackFacing;
+        @NonNull
+        final CameraEnumerationAndroid.CaptureFormat[] formats;
+
+        private Device(@NonNull final String name,
+                       final boolean isFrontFacing,
+                       final boolean isBackFacing,
+                       @NonNull final CameraEnumerationAndroid.CaptureFormat[] formats) {
+            this.name = name;
+            this.isFrontFacing = isFrontFacing;
+            this.isBackFacing = isBackFacing;
+            this.formats = formats;
+        }
+    }
+
+    @NonNull
+    final Device[] devices;
+
+    private WebRTCCameraCatalog(@NonNull final Device[] devices) {
+        this.devices = devices;
+    }
+
+    /**
+     * カメラデバイスを列挙します。時間がかかるので、メインスレッドからは呼び出さないでください。
+     * フォーマットを取得できなかったデバイスは、フォーマットが空のデバイスとして扱います。
+     */
+    @NonNull
+    static WebRTCCameraCatalog load(@NonNull final CameraEnumerator cameraEnumerator) {
+        final long start = System.currentTimeMillis();
+        final List<Device> devices = new ArrayList<>();
+        for (final String name : cameraEnumerator.getDeviceNames()) {
+            List<CameraEnumerationAndroid.CaptureFormat> formats = null;
+            try {
+                formats = cameraEnumerator.getSupportedFormats(name);
+            } catch (RuntimeException e) {
+                Log.w("WebRTCCamera", "WebRTCCameraCatalog load() - failed to get formats of " + name, e);
+            }
+            final CameraEnumerationAndroid.CaptureFormat[] formatArray = (formats == null)
+                    ? new CameraEnumerationAndroid.CaptureFormat[0]
+                    : formats.toArray(new CameraEnumerationAndroid.CaptureFormat[formats.size()]);
+            devices.add(new Device(name,
+                    cameraEnumerator.isFrontFacing(name),
+                    cameraEnumerator.isBackFacing(name),
+                    formatArray));
+        }
+        Log.d("WebRTCCamera", "WebRTCCameraCatalog load() - " + devices.size() + " devices, "
+                + (System.currentTimeMillis() - start) + "ms");
+        return new WebRTCCameraCatalog(devices.toArray(new Device[devices.size()]));
+    }
+
+    @Nullable
+    Device getDevice(@NonNull final String name) {
+        for (final Device device : devices) {
+            if (device.name.equals(name)) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * [{deviceId, kind, label, facingMode, formats: [[width, height, minFrameRate, maxFrameRate], ...]}, ...] の形式で返します。
+     * フレームレートは fps に変換します。
+     */
+    @NonNull
+    WritableArray jsonValue() {
+        final WritableArray json = Arguments.createArray();
+        for (final Device device : devices) {
+            final WritableMap deviceJson = Arguments.createMap();
+            deviceJson.putString("deviceId", device.name);
+            deviceJson.putString("kind", "videoinput");
+            deviceJson.putString("label", device.name);
+            if (device.isFrontFacing) {
+                deviceJson.putString("facingMode", "user");
+            } else if (device.isBackFacing) {
+                deviceJson.putString("facingMode", "environment");
+            } else {
+                deviceJson.putNull("facingMode");
+            }
+            final WritableArray formats = Arguments.createArray();
+            for (final CameraEnumerationAndroid.CaptureFormat format : device.formats) {
+                final WritableArray formatJson = Arguments.createArray();
+                formatJson.pushInt(format.width);
+                formatJson.pushInt(format.height);
+                formatJson.pushInt(WebRTCCamera.minFramerate(format));
+                formatJson.pushInt(WebRTCCamera.maxFramerate(format));
+                formats.pushArray(formatJson);
+            }
+            deviceJson.putArray("formats", formats);
+            json.pushMap(deviceJson);
+        }
+        return json;
+    }
+
+}
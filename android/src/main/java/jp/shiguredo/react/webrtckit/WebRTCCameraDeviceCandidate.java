@@ -9,18 +9,51 @@ final class WebRTCCameraDeviceCandidate implements Comparable<WebRTCCameraDevice
     final String deviceName;
     @NonNull
     final CameraEnumerationAndroid.CaptureFormat format;
-    final int score;
+    /**
+     * キャプチャを開始するフレームレート (fps) です。format のフレームレートの範囲に収まります。
+     */
+    final int framerate;
+    /**
+     * 制約の ideal との距離です。小さいほど良い候補です。
+     */
+    final double distance;
+    /**
+     * 幅と高さが ideal 以上であれば true です。ideal が指定されていない場合も true です。
+     */
+    final boolean isCoveringIdealSize;
 
     WebRTCCameraDeviceCandidate(@NonNull final String deviceName,
                                 @NonNull final CameraEnumerationAndroid.CaptureFormat format,
-                                final int score) {
+                                final int framerate,
+                                final double distance,
+                                final boolean isCoveringIdealSize) {
         this.deviceName = deviceName;
         this.format = format;
-        this.score = score;
+        this.framerate = framerate;
+        this.distance = distance;
+        this.isCoveringIdealSize = isCoveringIdealSize;
     }
 
+    /**
+     * キャプチャにかかるコストの目安として、1 秒あたりの画素数を返します。
+     */
+    long cost() {
+        return (long) format.width * format.height * framerate;
+    }
+
+    /**
+     * ideal との距離が近いものを優先し、同じ距離であれば ideal の大きさを下回らないもの、次にコストの低いものを優先します。
+     */
     @Override
     public int compareTo(@NonNull WebRTCCameraDeviceCandidate o) {
-        return score - ((WebRTCCameraDeviceCandidate) o).score;
+        if (Math.abs(distance - o.distance) > 1e-9) {
+            return (distance < o.distance) ? -1 : 1;
+        }
+        if (isCoveringIdealSize != o.isCoveringIdealSize) {
+            return isCoveringIdealSize ? -1 : 1;
+        }
+        final long cost = cost();
+        final long otherCost = o.cost();
+        return (cost < otherCost) ? -1 : ((cost == otherCost) ? 0 : 1);
     }
 }
@@ -0,0 +1,351 @@
+package jp.shiguredo.react.webrtckit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoDecoder;
+import org.webrtc.VideoDecoderFactory;
+import org.webrtc.VideoDecoderFallback;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoEncoderFactory;
+import org.webrtc.VideoEncoderFallback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 端末で利用可能な映像コーデックと、それぞれがハードウェア実装かソフトウェア実装かを保持します。
+ * <p>
+ * ハードウェアのファクトリの getSupportedCodecs() は MediaCodecList を走査するため時間がかかります。
+ * そのため調査結果は端末のモデルと OS のバージョンごとに SharedPreferences に保存し、次回以降はそれを使います。
+ * <p>
+ * コーデックの並び順は SDP での優先順位になります。ハードウェア実装のあるコーデックを先に並べ、
+ * ソフトウェア実装しかないコーデックを後ろに並べます。
+ * XXX: ハードウェアエンコーダーが不安定な SoC は HardwareVideoEncoderFactory 側で除外されるため、ここでは判定していません。
+ */
+final class WebRTCCodecCapabilities {
+
+    private static final String PREFERENCES_NAME = "jp.shiguredo.react.webrtckit.codec";
+    /**
+     * 保存する内容の形式を変えた場合は更新してください。
+     */
+    private static final int CACHE_VERSION = 1;
+    private static final int VIDEO_CLOCK_RATE = 90000;
+
+    static final class Codec {
+        @NonNull
+        final VideoCodecInfo info;
+        final boolean isHardware;
+
+        Codec(@NonNull final VideoCodecInfo info, final boolean isHardware) {
+            this.info = info;
+            this.isHardware = isHardware;
+        }
+    }
+
+    @NonNull
+    final List<Codec> encoders;
+    @NonNull
+    final List<Codec> decoders;
+
+    private WebRTCCodecCapabilities(@NonNull final List<Codec> encoders, @NonNull final List<Codec> decoders) {
+        this.encoders = Collections.unmodifiableList(encoders);
+        this.decoders = Collections.unmodifiableList(decoders);
+    }
+
+    /**
+     * 保存済みの調査結果があればそれを、なければ各ファクトリを調査して結果を保存し、返します。
+     */
+    @NonNull
+    static WebRTCCodecCapabilities load(@NonNull final Context context,
+                                        @NonNull final VideoEncoderFactory hardwareEncoderFactory,
+                                        @NonNull final VideoEncoderFactory softwareEncoderFactory,
+                                        @NonNull final VideoDecoderFactory hardwareDecoderFactory,
+                                        @NonNull final VideoDecoderFactory softwareDecoderFactory) {
+        final SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        final String key = preferencesKey();
+        final String cached = preferences.getString(key, null);
+        if (cached != null) {
+            try {
+                return fromJson(new JSONObject(cached));
+            } catch (final JSONException e) {
+                Log.w("WebRTCModule", "WebRTCCodecCapabilities load() - broken cache is ignored", e);
+            }
+        }
+
+        final WebRTCCodecCapabilities capabilities = new WebRTCCodecCapabilities(
+                merge(hardwareEncoderFactory.getSupportedCodecs(), softwareEncoderFactory.getSupportedCodecs()),
+                merge(hardwareDecoderFactory.getSupportedCodecs(), softwareDecoderFactory.getSupportedCodecs()));
+        try {
+            // 別の端末や OS のバージョンの結果は不要なので消してから保存する
+            preferences.edit().clear().putString(key, capabilities.toJson().toString()).apply();
+        } catch (final JSONException e) {
+            Log.w("WebRTCModule", "WebRTCCodecCapabilities load() - failed to save", e);
+        }
+        return capabilities;
+    }
+
+    @NonNull
+    private static String preferencesKey() {
+        return String.format(Locale.US, "v%d/%s/%s/%s/%d",
+                CACHE_VERSION, Build.MANUFACTURER, Build.MODEL, Build.VERSION.RELEASE, Build.VERSION.SDK_INT);
+    }
+
+    /**
+     * ハードウェア実装のコーデックを先に、ソフトウェア実装のみのコーデックを後に並べます。
+     */
+    @NonNull
+    private static List<Codec> merge(@Nullable final VideoCodecInfo[] hardware, @Nullable final VideoCodecInfo[] software) {
+        final List<Codec> codecs = new ArrayList<>();
+        final Set<String> keys = new HashSet<>();
+        if (hardware != null) {
+            for (final VideoCodecInfo info : hardware) {
+                if (keys.add(codecKey(info))) {
+                    codecs.add(new Codec(info, true));
+                }
+            }
+        }
+        if (software != null) {
+            for (final VideoCodecInfo info : software) {
+                if (keys.add(codecKey(info))) {
+                    codecs.add(new Codec(info, false));
+                }
+            }
+        }
+        return codecs;
+    }
+
+    /**
+     * コーデック名とパラメーターで同一のコーデックかどうかを判定するためのキーを返します。
+     */
+    @NonNull
+    private static String codecKey(@NonNull final VideoCodecInfo info) {
+        return info.name.toUpperCase(Locale.US) + new TreeMap<>(info.params);
+    }
+
+    @NonNull
+    private static VideoCodecInfo[] infos(@NonNull final List<Codec> codecs) {
+        final VideoCodecInfo[] infos = new VideoCodecInfo[codecs.size()];
+        for (int i = 0; i < infos.length; i++) {
+            infos[i] = codecs.get(i).info;
+        }
+        return infos;
+    }
+
+    //region JSON
+
+    @NonNull
+    private JSONObject toJson() throws JSONException {
+        final JSONObject json = new JSONObject();
+        json.put("encoders", codecsToJson(encoders));
+        json.put("decoders", codecsToJson(decoders));
+        return json;
+    }
+
+    @NonNull
+    private static JSONArray codecsToJson(@NonNull final List<Codec> codecs) throws JSONException {
+        final JSONArray array = new JSONArray();
+        for (final Codec codec : codecs) {
+            final JSONObject params = new JSONObject();
+            for (final Map.Entry<String, String> entry : codec.info.params.entrySet()) {
+                params.put(entry.getKey(), entry.getValue());
+            }
+            final JSONObject obj = new JSONObject();
+            obj.put("name", codec.info.name);
+            obj.put("params", params);
+            obj.put("hardware", codec.isHardware);
+            array.put(obj);
+        }
+        return array;
+    }
+
+    @NonNull
+    private static WebRTCCodecCapabilities fromJson(@NonNull final JSONObject json) throws JSONException {
+        return new WebRTCCodecCapabilities(
+                codecsFromJson(json.getJSONArray("encoders")),
+                codecsFromJson(json.getJSONArray("decoders")));
+    }
+
+    @NonNull
+    private static List<Codec> codecsFromJson(@NonNull final JSONArray array) throws JSONException {
+        final List<Codec> codecs = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+            final JSONObject obj = array.getJSONObject(i);
+            final JSONObject paramsJson = obj.getJSONObject("params");
+            final Map<String, String> params = new HashMap<>();
+            final Iterator<String> keys = paramsJson.keys();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                params.put(key, paramsJson.getString(key));
+            }
+            codecs.add(new Codec(new VideoCodecInfo(obj.getString("name"), params), obj.getBoolean("hardware")));
+        }
+        return codecs;
+    }
+
+    /**
+     * JS 側に渡す形式に変換します。
+     */
+    @NonNull
+    WritableMap jsonValue() {
+        final WritableMap json = Arguments.createMap();
+        json.putArray("encoders", codecsJsonValue(encoders));
+        json.putArray("decoders", codecsJsonValue(decoders));
+        return json;
+    }
+
+    @NonNull
+    private static WritableArray codecsJsonValue(@NonNull final List<Codec> codecs) {
+        final WritableArray array = Arguments.createArray();
+        for (final Codec codec : codecs) {
+            final WritableMap parameters = Arguments.createMap();
+            for (final Map.Entry<String, String> entry : codec.info.params.entrySet()) {
+                parameters.putString(entry.getKey(), entry.getValue());
+            }
+            final WritableMap obj = Arguments.createMap();
+            obj.putString("mimeType", "video/" + codec.info.name);
+            obj.putMap("parameters", parameters);
+            obj.putString("implementation", codec.isHardware ? "hardware" : "software");
+            array.pushMap(obj);
+        }
+        return array;
+    }
+
+    /**
+     * RTCRtpCapabilities の形式に変換します。送信側で利用可能なエンコーダーのコーデックを返します。
+     * headerExtensions は取得する手段がないため空にします。
+     */
+    @NonNull
+    WritableMap rtpCapabilitiesJsonValue() {
+        final WritableArray codecs = Arguments.createArray();
+        for (final Codec codec : encoders) {
+            final WritableMap obj = Arguments.createMap();
+            obj.putString("mimeType", "video/" + codec.info.name);
+            obj.putInt("clockRate", VIDEO_CLOCK_RATE);
+            if (!codec.info.params.isEmpty()) {
+                obj.putString("sdpFmtpLine", fmtpLine(codec.info.params));
+            }
+            codecs.pushMap(obj);
+        }
+        final WritableMap json = Arguments.createMap();
+        json.putArray("codecs", codecs);
+        json.putArray("headerExtensions", Arguments.createArray());
+        return json;
+    }
+
+    @NonNull
+    private static String fmtpLine(@NonNull final Map<String, String> params) {
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<String, String> entry : new TreeMap<>(params).entrySet()) {
+            if (sb.length() > 0) sb.append(';');
+            sb.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    //endregion
+
+    //region Factories
+
+    /**
+     * 調査結果をコーデックの一覧として返すエンコーダーのファクトリです。
+     * getSupportedCodecs() は調査結果を返すため、MediaCodecList を再び走査することはありません。
+     * 調査結果は並び順にのみ使い、エンコーダーの生成は DefaultVideoEncoderFactory と同じく常にハードウェア実装から試みます。
+     * ハードウェア実装がある場合は、失敗時にソフトウェア実装に切り替わるエンコーダーを生成します。
+     * XXX: ネゴシエーションされたコーデックのパラメーター (H264 の profile-level-id など) は調査結果と一致するとは限らないため、
+     *      調査結果との完全一致でハードウェア実装を選ぶと H264 のようにソフトウェア実装のないコーデックが使えなくなる
+     */
+    static final class EncoderFactory implements VideoEncoderFactory {
+        @NonNull
+        private final VideoEncoderFactory hardwareFactory;
+        @NonNull
+        private final VideoEncoderFactory softwareFactory;
+        @NonNull
+        private final VideoCodecInfo[] supportedCodecs;
+
+        EncoderFactory(@NonNull final WebRTCCodecCapabilities capabilities,
+                       @NonNull final VideoEncoderFactory hardwareFactory,
+                       @NonNull final VideoEncoderFactory softwareFactory) {
+            this.hardwareFactory = hardwareFactory;
+            this.softwareFactory = softwareFactory;
+            this.supportedCodecs = infos(capabilities.encoders);
+        }
+
+        @Nullable
+        @Override
+        public VideoEncoder createEncoder(VideoCodecInfo info) {
+            final VideoEncoder software = softwareFactory.createEncoder(info);
+            final VideoEncoder hardware = hardwareFactory.createEncoder(info);
+            if (hardware != null && software != null) {
+                return new VideoEncoderFallback(software, hardware);
+            }
+            return (hardware != null) ? hardware : software;
+        }
+
+        @NonNull
+        @Override
+        public VideoCodecInfo[] getSupportedCodecs() {
+            return supportedCodecs.clone();
+        }
+    }
+
+    /**
+     * 調査結果に従ってデコーダーを生成するファクトリです。EncoderFactory を参照してください。
+     */
+    static final class DecoderFactory implements VideoDecoderFactory {
+        @NonNull
+        private final VideoDecoderFactory hardwareFactory;
+        @NonNull
+        private final VideoDecoderFactory softwareFactory;
+        @NonNull
+        private final VideoCodecInfo[] supportedCodecs;
+
+        DecoderFactory(@NonNull final WebRTCCodecCapabilities capabilities,
+                       @NonNull final VideoDecoderFactory hardwareFactory,
+                       @NonNull final VideoDecoderFactory softwareFactory) {
+            this.hardwareFactory = hardwareFactory;
+            this.softwareFactory = softwareFactory;
+            this.supportedCodecs = infos(capabilities.decoders);
+        }
+
+        @Nullable
+        @Override
+        public VideoDecoder createDecoder(VideoCodecInfo info) {
+            final VideoDecoder software = softwareFactory.createDecoder(info);
+            final VideoDecoder hardware = hardwareFactory.createDecoder(info);
+            if (hardware != null && software != null) {
+                return new VideoDecoderFallback(software, hardware);
+            }
+            return (hardware != null) ? hardware : software;
+        }
+
+        @NonNull
+        @Override
+        public VideoCodecInfo[] getSupportedCodecs() {
+            return supportedCodecs.clone();
+        }
+    }
+
+    //endregion
+
+}
@@ -0,0 +1,211 @@
+package jp.shiguredo.react.webrtckit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * トランシーバーごとのコーデックの優先順位を SDP に反映します。
+ * <p>
+ * XXX: libwebrtc M88 の Android 版には RtpTransceiver.setCodecPreferences() がないため、
+ *      createOffer() / createAnswer() で生成された SDP の m= 行のペイロードタイプをネイティブ側で並べ替えています。
+ *      JS 側で SDP を書き換える必要はなく、SDP がブリッジを余分に往復することもありません。
+ *      指定されなかったコーデックは削除せず、指定されたコーデックの後ろに元の順序で残します。
+ */
+final class WebRTCCodecPreferences {
+
+    static final class Codec {
+        @NonNull
+        final String mimeType;
+        @Nullable
+        final Integer clockRate;
+        @Nullable
+        final Integer channels;
+        /**
+         * sdpFmtpLine を解析したもの。ここに含まれるパラメーターがすべて一致するコーデックのみを対象にします。
+         */
+        @NonNull
+        final Map<String, String> parameters;
+
+        Codec(@NonNull final String mimeType,
+              @Nullable final Integer clockRate,
+              @Nullable final Integer channels,
+              @Nullable final String sdpFmtpLine) {
+            this.mimeType = mimeType;
+            this.clockRate = clockRate;
+            this.channels = channels;
+            this.parameters = (sdpFmtpLine == null) ? Collections.<String, String>emptyMap() : parseFmtp(sdpFmtpLine);
+        }
+    }
+
+    private WebRTCCodecPreferences() {
+    }
+
+    /**
+     * SDP の各 m= セクションのうち、a=mid が preferences に含まれるもののペイロードタイプを並べ替えます。
+     *
+     * @param preferences Key is mid, Value is codecs in preferred order.
+     */
+    @NonNull
+    static String apply(@NonNull final String sdp, @NonNull final Map<String, List<Codec>> preferences) {
+        if (preferences.isEmpty()) return sdp;
+        final String[] lines = sdp.split("\r\n", -1);
+        int sectionStart = -1;
+        for (int i = 0; i <= lines.length; i++) {
+            if (i == lines.length || lines[i].startsWith("m=")) {
+                if (sectionStart >= 0) {
+                    applyToSection(lines, sectionStart, i, preferences);
+                }
+                sectionStart = i;
+            }
+        }
+        final StringBuilder sb = new StringBuilder(sdp.length());
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0) sb.append("\r\n");
+            sb.append(lines[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * SDP の各 m= セクションの a=msid に含まれるトラックの ID と、そのセクションの mid の対応を返します。
+     * 最初の offer ではトランシーバーの mid が setLocalDescription() まで決まらないため、送信するトラックからセクションを探すのに使います。
+     *
+     * @return Key is id of the track, Value is mid.
+     */
+    @NonNull
+    static Map<String, String> midsByTrackId(@NonNull final String sdp) {
+        final Map<String, String> mids = new HashMap<>();
+        String mid = null;
+        String trackId = null;
+        final String[] lines = sdp.split("\r\n", -1);
+        for (int i = 0; i <= lines.length; i++) {
+            if (i == lines.length || lines[i].startsWith("m=")) {
+                if (mid != null && trackId != null) {
+                    mids.put(trackId, mid);
+                }
+                mid = null;
+                trackId = null;
+                continue;
+            }
+            final String line = lines[i];
+            if (line.startsWith("a=mid:")) {
+                mid = line.substring("a=mid:".length()).trim();
+            } else if (line.startsWith("a=msid:")) {
+                // a=msid:<stream id> <track id>
+                final String[] pair = line.substring("a=msid:".length()).split(" ", 2);
+                if (pair.length == 2) trackId = pair[1].trim();
+            }
+        }
+        return mids;
+    }
+
+    private static void applyToSection(@NonNull final String[] lines,
+                                       final int start,
+                                       final int end,
+                                       @NonNull final Map<String, List<Codec>> preferences) {
+        String mid = null;
+        // Key is payload type
+        final Map<String, String> rtpmaps = new HashMap<>();
+        final Map<String, Map<String, String>> fmtps = new HashMap<>();
+        for (int i = start + 1; i < end; i++) {
+            final String line = lines[i];
+            if (line.startsWith("a=mid:")) {
+                mid = line.substring("a=mid:".length()).trim();
+            } else if (line.startsWith("a=rtpmap:")) {
+                final String[] pair = line.substring("a=rtpmap:".length()).split(" ", 2);
+                if (pair.length == 2) rtpmaps.put(pair[0], pair[1].trim());
+            } else if (line.startsWith("a=fmtp:")) {
+                final String[] pair = line.substring("a=fmtp:".length()).split(" ", 2);
+                if (pair.length == 2) fmtps.put(pair[0], parseFmtp(pair[1]));
+            }
+        }
+        if (mid == null) return;
+        final List<Codec> codecs = preferences.get(mid);
+        if (codecs == null || codecs.isEmpty()) return;
+
+        // m=<media> <port> <proto> <fmt> ...
+        final String[] tokens = lines[start].split(" ");
+        if (tokens.length < 4) return;
+        final String kind = tokens[0].substring("m=".length());
+        final List<String> payloadTypes = new ArrayList<>();
+        for (int i = 3; i < tokens.length; i++) {
+            payloadTypes.add(tokens[i]);
+        }
+
+        final Set<String> ordered = new LinkedHashSet<>();
+        for (final Codec codec : codecs) {
+            for (final String payloadType : payloadTypes) {
+                if (ordered.contains(payloadType)) continue;
+                if (!matches(codec, kind, rtpmaps.get(payloadType), fmtps.get(payloadType))) continue;
+                ordered.add(payloadType);
+                // 対応する RTX は元のコーデックの直後に並べる
+                for (final String rtxPayloadType : payloadTypes) {
+                    final Map<String, String> fmtp = fmtps.get(rtxPayloadType);
+                    if (fmtp != null && payloadType.equals(fmtp.get("apt"))) {
+                        ordered.add(rtxPayloadType);
+                    }
+                }
+            }
+        }
+        if (ordered.isEmpty()) return;
+        ordered.addAll(payloadTypes);
+
+        final StringBuilder sb = new StringBuilder(tokens[0]).append(' ').append(tokens[1]).append(' ').append(tokens[2]);
+        for (final String payloadType : ordered) {
+            sb.append(' ').append(payloadType);
+        }
+        lines[start] = sb.toString();
+    }
+
+    /**
+     * @param rtpmap "<encoding name>/<clock rate>[/<channels>]"
+     */
+    private static boolean matches(@NonNull final Codec codec,
+                                   @NonNull final String kind,
+                                   @Nullable final String rtpmap,
+                                   @Nullable final Map<String, String> fmtp) {
+        if (rtpmap == null) return false;
+        final String[] parts = rtpmap.split("/");
+        final String mimeType = kind + "/" + parts[0];
+        if (!mimeType.toLowerCase(Locale.US).equals(codec.mimeType.toLowerCase(Locale.US))) {
+            return false;
+        }
+        if (codec.clockRate != null && (parts.length < 2 || !parts[1].equals(codec.clockRate.toString()))) {
+            return false;
+        }
+        if (codec.channels != null) {
+            final String channels = (parts.length < 3) ? "1" : parts[2];
+            if (!channels.equals(codec.channels.toString())) return false;
+        }
+        for (final Map.Entry<String, String> entry : codec.parameters.entrySet()) {
+            if (fmtp == null || !entry.getValue().equalsIgnoreCase(fmtp.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * "key1=value1;key2=value2" の形式の fmtp を解析します。
+     */
+    @NonNull
+    private static Map<String, String> parseFmtp(@NonNull final String fmtp) {
+        final Map<String, String> parameters = new HashMap<>();
+        for (final String parameter : fmtp.split(";")) {
+            final int index = parameter.indexOf('=');
+            if (index <= 0) continue;
+            parameters.put(parameter.substring(0, index).trim(), parameter.substring(index + 1).trim());
+        }
+        return parameters;
+    }
+
+}
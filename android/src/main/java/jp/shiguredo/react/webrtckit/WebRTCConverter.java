@@ -12,12 +12,16 @@ import com.facebook.react.bridge.ReadableMapKeySetIterator;
 import com.facebook.react.bridge.ReadableType;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.blob.BlobModule;
 
 import org.webrtc.DataChannel;
 import org.webrtc.IceCandidate;
 import org.webrtc.MediaConstraints;
 import org.webrtc.MediaStreamTrack;
 import org.webrtc.PeerConnection;
+import org.webrtc.Priority;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
 import org.webrtc.RtpParameters;
 import org.webrtc.RtpReceiver;
 import org.webrtc.RtpSender;
@@ -30,11 +34,14 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 import static jp.shiguredo.react.webrtckit.Readables.array;
 import static jp.shiguredo.react.webrtckit.Readables.booleans;
 import static jp.shiguredo.react.webrtckit.Readables.doubles;
+import static jp.shiguredo.react.webrtckit.Readables.integer;
 import static jp.shiguredo.react.webrtckit.Readables.jint;
 import static jp.shiguredo.react.webrtckit.Readables.map;
 import static jp.shiguredo.react.webrtckit.Readables.string;
@@ -66,12 +73,22 @@ final class WebRTCConverter {
         for (final RtpParameters.Encoding encoding : parameters.encodings) {
             final WritableMap obj = Arguments.createMap();
             obj.putBoolean("active", encoding.active);
+            if (encoding.rid != null) {
+                obj.putString("rid", encoding.rid);
+            }
             if (encoding.maxBitrateBps != null) {
                 obj.putInt("maxBitrate", encoding.maxBitrateBps);
             }
             if (encoding.minBitrateBps != null) {
                 obj.putInt("minBitrate", encoding.minBitrateBps);
             }
+            if (encoding.maxFramerate != null) {
+                obj.putInt("maxFramerate", encoding.maxFramerate);
+            }
+            if (encoding.scaleResolutionDownBy != null) {
+                obj.putDouble("scaleResolutionDownBy", encoding.scaleResolutionDownBy);
+            }
+            obj.putString("networkPriority", priorityStringValue(encoding.networkPriority));
             if (encoding.ssrc != null) {
                 // XXX: putLong()が存在しない、putIntでは桁落ちする危険性がある、putDoubleでは元の値と異なる値になって壊れる危険性がある、参った
                 //      一応putIntで対応するが、桁落ちした場合はputDoubleを試すしかないかもしれない
@@ -84,18 +101,9 @@ final class WebRTCConverter {
         for (final RtpParameters.Codec codec : parameters.codecs) {
             final WritableMap obj = Arguments.createMap();
             obj.putInt("payloadType", codec.payloadType);
-            // XXX: 一体全体なぜかわからないが肝心のkindだけ何故かinternalになっていて普通に取り出せないのでreflectionします、最低最悪、絶対libwebrtcのバグだと思うが他に手がないです
-            try {
-                final Field kindField = codec.getClass().getField("kind");
-                final MediaStreamTrack.MediaType kind = (MediaStreamTrack.MediaType) kindField.get(codec);
-                switch (kind) {
-                    case MEDIA_TYPE_AUDIO:
-                        obj.putString("mimeType", String.format("audio/%s", codec.name));
-                    case MEDIA_TYPE_VIDEO:
-                        obj.putString("mimeType", String.format("video/%s", codec.name));
-                }
-            } catch (final Throwable e) {
-                // Do nothing
+            final String mimeType = codecMimeType(codec);
+            if (mimeType != null) {
+                obj.putString("mimeType", mimeType);
             }
             final WritableMap parametersObj = Arguments.createMap();
             for (final Map.Entry<String, String> entry : codec.parameters.entrySet()) {
@@ -120,6 +128,165 @@ final class WebRTCConverter {
         return json;
     }
 
+    /**
+     * RtpParameters.Codec の kind フィールドです。初回の参照時に 1 度だけ取得します。
+     * XXX: 一体全体なぜかわからないが肝心のkindだけ何故かinternalになっていて普通に取り出せないのでreflectionします、最低最悪、絶対libwebrtcのバグだと思うが他に手がないです
+     */
+    private static final class CodecKindField {
+        @Nullable
+        static final Field FIELD = find();
+
+        @Nullable
+        private static Field find() {
+            // getField() は public なフィールドしか返さないため、getDeclaredField() で取得してアクセスを許可する
+            try {
+                final Field field = RtpParameters.Codec.class.getDeclaredField("kind");
+                field.setAccessible(true);
+                return field;
+            } catch (final Throwable e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Key is codec name, Value is mimeType.
+     * コーデック名の種類は限られているので、生成した mimeType の文字列を使い回します。
+     */
+    private static final Map<String, String> audioMimeTypes = new ConcurrentHashMap<>();
+    private static final Map<String, String> videoMimeTypes = new ConcurrentHashMap<>();
+
+    @Nullable
+    private static String codecMimeType(@NonNull final RtpParameters.Codec codec) {
+        final Field kindField = CodecKindField.FIELD;
+        if (kindField == null || codec.name == null) return null;
+        final MediaStreamTrack.MediaType kind;
+        try {
+            kind = (MediaStreamTrack.MediaType) kindField.get(codec);
+        } catch (final Throwable e) {
+            return null;
+        }
+        if (kind == null) return null;
+        final Map<String, String> cache;
+        final String prefix;
+        switch (kind) {
+            case MEDIA_TYPE_AUDIO:
+                cache = audioMimeTypes;
+                prefix = "audio/";
+                break;
+            case MEDIA_TYPE_VIDEO:
+                cache = videoMimeTypes;
+                prefix = "video/";
+                break;
+            default:
+                return null;
+        }
+        String mimeType = cache.get(codec.name);
+        if (mimeType == null) {
+            mimeType = prefix + codec.name;
+            cache.put(codec.name, mimeType);
+        }
+        return mimeType;
+    }
+
+    /**
+     * JS から渡されたパッチを RtpParameters に適用します。
+     * パッチは { encodings: Array<Object> } の形式で、各要素は rid、ssrc、配列のインデックスの順に対象のエンコーディングを特定します。
+     * 各要素で指定可能な項目は active, maxBitrate, minBitrate, maxFramerate, scaleResolutionDownBy, networkPriority です。
+     * 値に null を指定した項目は未設定に戻します。
+     */
+    static void applyRtpParametersPatch(@NonNull final RtpParameters parameters, @NonNull final ReadableMap json) {
+        final ReadableArray encodingsJson = array(json, "encodings");
+        if (encodingsJson == null) {
+            return;
+        }
+        for (int i = 0; i < encodingsJson.size(); i++) {
+            final ReadableMap encodingJson = encodingsJson.getMap(i);
+            if (encodingJson == null) {
+                throw new IllegalArgumentException("invalid encoding patch at " + i);
+            }
+            final RtpParameters.Encoding encoding = findEncoding(parameters, encodingJson, i);
+            if (encoding == null) {
+                throw new IllegalArgumentException("encoding is not found for patch at " + i);
+            }
+            final Boolean active = booleans(encodingJson, "active");
+            if (active != null) {
+                encoding.active = active;
+            }
+            if (encodingJson.hasKey("maxBitrate")) {
+                encoding.maxBitrateBps = integer(encodingJson, "maxBitrate");
+            }
+            if (encodingJson.hasKey("minBitrate")) {
+                encoding.minBitrateBps = integer(encodingJson, "minBitrate");
+            }
+            if (encodingJson.hasKey("maxFramerate")) {
+                encoding.maxFramerate = integer(encodingJson, "maxFramerate");
+            }
+            if (encodingJson.hasKey("scaleResolutionDownBy")) {
+                encoding.scaleResolutionDownBy = doubles(encodingJson, "scaleResolutionDownBy");
+            }
+            final String networkPriority = string(encodingJson, "networkPriority");
+            if (networkPriority != null) {
+                encoding.networkPriority = priority(networkPriority);
+            }
+        }
+    }
+
+    @Nullable
+    private static RtpParameters.Encoding findEncoding(@NonNull final RtpParameters parameters,
+                                                       @NonNull final ReadableMap encodingJson,
+                                                       final int index) {
+        final String rid = string(encodingJson, "rid");
+        final Double ssrc = doubles(encodingJson, "ssrc");
+        if (rid == null && ssrc == null) {
+            return (index < parameters.encodings.size()) ? parameters.encodings.get(index) : null;
+        }
+        for (final RtpParameters.Encoding encoding : parameters.encodings) {
+            if (rid != null && rid.equals(encoding.rid)) {
+                return encoding;
+            }
+            if (ssrc != null && encoding.ssrc != null && encoding.ssrc == ssrc.longValue()) {
+                return encoding;
+            }
+        }
+        return null;
+    }
+
+    //endregion
+
+    //region Priority
+
+    static int priority(@NonNull final String string) {
+        switch (string) {
+            case "very-low":
+                return Priority.VERY_LOW;
+            case "low":
+                return Priority.LOW;
+            case "medium":
+                return Priority.MEDIUM;
+            case "high":
+                return Priority.HIGH;
+            default:
+                throw new IllegalArgumentException("invalid priority string " + string);
+        }
+    }
+
+    @NonNull
+    static String priorityStringValue(final int priority) {
+        switch (priority) {
+            case Priority.VERY_LOW:
+                return "very-low";
+            case Priority.LOW:
+                return "low";
+            case Priority.MEDIUM:
+                return "medium";
+            case Priority.HIGH:
+                return "high";
+            default:
+                throw new IllegalArgumentException("invalid priority " + priority);
+        }
+    }
+
     //endregion
 
     //region RtpSender
@@ -127,6 +294,17 @@ final class WebRTCConverter {
     @NonNull
     static WritableMap rtpSenderJsonValue(@NonNull final RtpSender sender,
                                           @NonNull final WebRTCRepository repository) {
+        return rtpSenderJsonValue(sender, repository, true);
+    }
+
+    /**
+     * includesParameters が false の場合、parameters を含めません。
+     * getParameters() の JNI 呼び出しと変換を省略できるので、必要な場合は valueTag を使って後から取得してください。
+     */
+    @NonNull
+    static WritableMap rtpSenderJsonValue(@NonNull final RtpSender sender,
+                                          @NonNull final WebRTCRepository repository,
+                                          final boolean includesParameters) {
         final String valueTag = repository.senders.getValueTag(sender.id());
         final List<String> streamIds = repository.getStreamIdsForSender(sender);
 
@@ -139,7 +317,9 @@ final class WebRTCConverter {
 
         final WritableMap json = Arguments.createMap();
         json.putString("id", sender.id());
-        json.putMap("parameters", rtpParametersJsonValue(sender.getParameters()));
+        if (includesParameters) {
+            json.putMap("parameters", rtpParametersJsonValue(sender.getParameters()));
+        }
         json.putArray("streamIds", streamIdsArray);
         if (valueTag != null) {
             json.putString("valueTag", valueTag);
@@ -171,6 +351,17 @@ final class WebRTCConverter {
     @NonNull
     static WritableMap rtpReceiverJsonValue(@NonNull final RtpReceiver receiver,
                                             @NonNull final WebRTCRepository repository) {
+        return rtpReceiverJsonValue(receiver, repository, true);
+    }
+
+    /**
+     * includesParameters が false の場合、parameters を含めません。
+     * getParameters() の JNI 呼び出しと変換を省略できるので、必要な場合は valueTag を使って後から取得してください。
+     */
+    @NonNull
+    static WritableMap rtpReceiverJsonValue(@NonNull final RtpReceiver receiver,
+                                            @NonNull final WebRTCRepository repository,
+                                            final boolean includesParameters) {
         final String valueTag = repository.receivers.getValueTag(receiver.id());
         final List<String> streamIds = repository.getStreamIdsForReceiver(receiver);
 
@@ -183,7 +374,9 @@ final class WebRTCConverter {
 
         final WritableMap json = Arguments.createMap();
         json.putString("id", receiver.id());
-        json.putMap("parameters", rtpParametersJsonValue(receiver.getParameters()));
+        if (includesParameters) {
+            json.putMap("parameters", rtpParametersJsonValue(receiver.getParameters()));
+        }
         json.putArray("streamIds", streamIdsArray);
         if (valueTag != null) {
             json.putString("valueTag", valueTag);
@@ -215,11 +408,18 @@ final class WebRTCConverter {
     @NonNull
     static WritableMap rtpTransceiverJsonValue(@NonNull final RtpTransceiver transceiver,
                                                @NonNull final WebRTCRepository repository) {
+        return rtpTransceiverJsonValue(transceiver, repository, true);
+    }
+
+    @NonNull
+    static WritableMap rtpTransceiverJsonValue(@NonNull final RtpTransceiver transceiver,
+                                               @NonNull final WebRTCRepository repository,
+                                               final boolean includesParameters) {
         final String valueTag = repository.transceivers.getValueTag(transceiver.getMid());
         final WritableMap json = Arguments.createMap();
         json.putString("mid", transceiver.getMid());
-        json.putMap("sender", rtpSenderJsonValue(transceiver.getSender(), repository));
-        json.putMap("receiver", rtpReceiverJsonValue(transceiver.getReceiver(), repository));
+        json.putMap("sender", rtpSenderJsonValue(transceiver.getSender(), repository, includesParameters));
+        json.putMap("receiver", rtpReceiverJsonValue(transceiver.getReceiver(), repository, includesParameters));
         json.putBoolean("stopped", transceiver.isStopped());
         if (valueTag != null) {
             json.putString("valueTag", valueTag);
@@ -243,6 +443,30 @@ final class WebRTCConverter {
 
     //endregion
 
+    //region Codec preferences
+
+    /**
+     * RTCRtpCodecCapability の配列をコーデックの優先順位に変換します。
+     */
+    @NonNull
+    static List<WebRTCCodecPreferences.Codec> codecPreferences(@NonNull final ReadableArray json) {
+        final List<WebRTCCodecPreferences.Codec> codecs = new ArrayList<>();
+        for (int i = 0; i < json.size(); i++) {
+            final ReadableMap codecJson = json.getMap(i);
+            final String mimeType = (codecJson == null) ? null : string(codecJson, "mimeType");
+            if (mimeType == null) {
+                throw new IllegalArgumentException("mimeType is required at " + i);
+            }
+            codecs.add(new WebRTCCodecPreferences.Codec(mimeType,
+                    integer(codecJson, "clockRate"),
+                    integer(codecJson, "channels"),
+                    string(codecJson, "sdpFmtpLine")));
+        }
+        return codecs;
+    }
+
+    //endregion
+
     //region RtpTransceiver.RtpTransceiverDirection
 
     @NonNull
@@ -325,10 +549,18 @@ final class WebRTCConverter {
 
         final PeerConnection.RTCConfiguration configuration = new PeerConnection.RTCConfiguration(iceServers);
 
-        configuration.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
-        configuration.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
-        configuration.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
-        configuration.keyType = PeerConnection.KeyType.ECDSA;
+        // 以下の 4 つは指定がない場合、従来通りの値を使う
+        final String bundlePolicyString = string(json, "bundlePolicy");
+        configuration.bundlePolicy = (bundlePolicyString != null)
+                ? bundlePolicy(bundlePolicyString) : PeerConnection.BundlePolicy.MAXBUNDLE;
+        final String rtcpMuxPolicyString = string(json, "rtcpMuxPolicy");
+        configuration.rtcpMuxPolicy = (rtcpMuxPolicyString != null)
+                ? rtcpMuxPolicy(rtcpMuxPolicyString) : PeerConnection.RtcpMuxPolicy.REQUIRE;
+        final String gatheringPolicyString = string(json, "continualGatheringPolicy");
+        configuration.continualGatheringPolicy = (gatheringPolicyString != null)
+                ? continualGatheringPolicy(gatheringPolicyString) : PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
+        final String keyTypeString = string(json, "keyType");
+        configuration.keyType = (keyTypeString != null) ? keyType(keyTypeString) : PeerConnection.KeyType.ECDSA;
         configuration.enableDtlsSrtp = true;
 
         final String policyString = string(json, "iceTransportPolicy");
@@ -336,7 +568,75 @@ final class WebRTCConverter {
             configuration.iceTransportsType = iceTransportsType(policyString);
         }
 
-        // XXX:  configuration.tcpCandidatePolicy
+        final String tcpCandidatePolicyString = string(json, "tcpCandidatePolicy");
+        if (tcpCandidatePolicyString != null) {
+            configuration.tcpCandidatePolicy = tcpCandidatePolicy(tcpCandidatePolicyString);
+        }
+        final String candidateNetworkPolicyString = string(json, "candidateNetworkPolicy");
+        if (candidateNetworkPolicyString != null) {
+            configuration.candidateNetworkPolicy = candidateNetworkPolicy(candidateNetworkPolicyString);
+        }
+        final String networkPreferenceString = string(json, "networkPreference");
+        if (networkPreferenceString != null) {
+            configuration.networkPreference = adapterType(networkPreferenceString);
+        }
+
+        // ICE の候補を offer の生成前に収集しておく数
+        final Integer iceCandidatePoolSize = integer(json, "iceCandidatePoolSize");
+        if (iceCandidatePoolSize != null) {
+            configuration.iceCandidatePoolSize = iceCandidatePoolSize;
+        }
+        // 以下の時間の単位はすべてミリ秒
+        final Integer iceCheckMinInterval = integer(json, "iceCheckMinInterval");
+        if (iceCheckMinInterval != null) {
+            configuration.iceCheckMinInterval = iceCheckMinInterval;
+        }
+        final Integer iceCheckIntervalStrongConnectivity = integer(json, "iceCheckIntervalStrongConnectivity");
+        if (iceCheckIntervalStrongConnectivity != null) {
+            configuration.iceCheckIntervalStrongConnectivityMs = iceCheckIntervalStrongConnectivity;
+        }
+        final Integer iceCheckIntervalWeakConnectivity = integer(json, "iceCheckIntervalWeakConnectivity");
+        if (iceCheckIntervalWeakConnectivity != null) {
+            configuration.iceCheckIntervalWeakConnectivityMs = iceCheckIntervalWeakConnectivity;
+        }
+        final Integer iceConnectionReceivingTimeout = integer(json, "iceConnectionReceivingTimeout");
+        if (iceConnectionReceivingTimeout != null) {
+            configuration.iceConnectionReceivingTimeout = iceConnectionReceivingTimeout;
+        }
+        final Integer iceBackupCandidatePairPingInterval = integer(json, "iceBackupCandidatePairPingInterval");
+        if (iceBackupCandidatePairPingInterval != null) {
+            configuration.iceBackupCandidatePairPingInterval = iceBackupCandidatePairPingInterval;
+        }
+        final Integer iceUnwritableTimeout = integer(json, "iceUnwritableTimeout");
+        if (iceUnwritableTimeout != null) {
+            configuration.iceUnwritableTimeMs = iceUnwritableTimeout;
+        }
+        final Integer iceUnwritableMinChecks = integer(json, "iceUnwritableMinChecks");
+        if (iceUnwritableMinChecks != null) {
+            configuration.iceUnwritableMinChecks = iceUnwritableMinChecks;
+        }
+        final Integer stunCandidateKeepaliveInterval = integer(json, "stunCandidateKeepaliveInterval");
+        if (stunCandidateKeepaliveInterval != null) {
+            configuration.stunCandidateKeepaliveIntervalMs = stunCandidateKeepaliveInterval;
+        }
+        final Boolean pruneTurnPorts = booleans(json, "pruneTurnPorts");
+        if (pruneTurnPorts != null) {
+            configuration.pruneTurnPorts = pruneTurnPorts;
+        }
+        final Boolean presumeWritableWhenFullyRelayed = booleans(json, "presumeWritableWhenFullyRelayed");
+        if (presumeWritableWhenFullyRelayed != null) {
+            configuration.presumeWritableWhenFullyRelayed = presumeWritableWhenFullyRelayed;
+        }
+
+        // 音声のジッターバッファ
+        final Integer audioJitterBufferMaxPackets = integer(json, "audioJitterBufferMaxPackets");
+        if (audioJitterBufferMaxPackets != null) {
+            configuration.audioJitterBufferMaxPackets = audioJitterBufferMaxPackets;
+        }
+        final Boolean audioJitterBufferFastAccelerate = booleans(json, "audioJitterBufferFastAccelerate");
+        if (audioJitterBufferFastAccelerate != null) {
+            configuration.audioJitterBufferFastAccelerate = audioJitterBufferFastAccelerate;
+        }
 
         final String semanticsString = string(json, "sdpSemantics");
         if (semanticsString != null) {
@@ -349,6 +649,135 @@ final class WebRTCConverter {
     //endregion
 
 
+    //region PeerConnection.BundlePolicy
+
+    @NonNull
+    static PeerConnection.BundlePolicy bundlePolicy(@NonNull final String string) {
+        switch (string) {
+            case "balanced":
+                return PeerConnection.BundlePolicy.BALANCED;
+            case "max-bundle":
+                return PeerConnection.BundlePolicy.MAXBUNDLE;
+            case "max-compat":
+                return PeerConnection.BundlePolicy.MAXCOMPAT;
+            default:
+                throw new IllegalArgumentException("invalid bundle policy string " + string);
+        }
+    }
+
+    //endregion
+
+
+    //region PeerConnection.RtcpMuxPolicy
+
+    @NonNull
+    static PeerConnection.RtcpMuxPolicy rtcpMuxPolicy(@NonNull final String string) {
+        switch (string) {
+            case "negotiate":
+                return PeerConnection.RtcpMuxPolicy.NEGOTIATE;
+            case "require":
+                return PeerConnection.RtcpMuxPolicy.REQUIRE;
+            default:
+                throw new IllegalArgumentException("invalid rtcp mux policy string " + string);
+        }
+    }
+
+    //endregion
+
+
+    //region PeerConnection.ContinualGatheringPolicy
+
+    @NonNull
+    static PeerConnection.ContinualGatheringPolicy continualGatheringPolicy(@NonNull final String string) {
+        switch (string) {
+            case "gather-once":
+                return PeerConnection.ContinualGatheringPolicy.GATHER_ONCE;
+            case "gather-continually":
+                return PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
+            default:
+                throw new IllegalArgumentException("invalid continual gathering policy string " + string);
+        }
+    }
+
+    //endregion
+
+
+    //region PeerConnection.KeyType
+
+    @NonNull
+    static PeerConnection.KeyType keyType(@NonNull final String string) {
+        switch (string) {
+            case "rsa":
+                return PeerConnection.KeyType.RSA;
+            case "ecdsa":
+                return PeerConnection.KeyType.ECDSA;
+            default:
+                throw new IllegalArgumentException("invalid key type string " + string);
+        }
+    }
+
+    //endregion
+
+
+    //region PeerConnection.TcpCandidatePolicy
+
+    @NonNull
+    static PeerConnection.TcpCandidatePolicy tcpCandidatePolicy(@NonNull final String string) {
+        switch (string) {
+            case "enabled":
+                return PeerConnection.TcpCandidatePolicy.ENABLED;
+            case "disabled":
+                return PeerConnection.TcpCandidatePolicy.DISABLED;
+            default:
+                throw new IllegalArgumentException("invalid tcp candidate policy string " + string);
+        }
+    }
+
+    //endregion
+
+
+    //region PeerConnection.CandidateNetworkPolicy
+
+    @NonNull
+    static PeerConnection.CandidateNetworkPolicy candidateNetworkPolicy(@NonNull final String string) {
+        switch (string) {
+            case "all":
+                return PeerConnection.CandidateNetworkPolicy.ALL;
+            case "low-cost":
+                return PeerConnection.CandidateNetworkPolicy.LOW_COST;
+            default:
+                throw new IllegalArgumentException("invalid candidate network policy string " + string);
+        }
+    }
+
+    //endregion
+
+
+    //region PeerConnection.AdapterType
+
+    @NonNull
+    static PeerConnection.AdapterType adapterType(@NonNull final String string) {
+        switch (string) {
+            case "unknown":
+                return PeerConnection.AdapterType.UNKNOWN;
+            case "ethernet":
+                return PeerConnection.AdapterType.ETHERNET;
+            case "wifi":
+                return PeerConnection.AdapterType.WIFI;
+            case "cellular":
+                return PeerConnection.AdapterType.CELLULAR;
+            case "vpn":
+                return PeerConnection.AdapterType.VPN;
+            case "loopback":
+                return PeerConnection.AdapterType.LOOPBACK;
+            default:
+                throw new IllegalArgumentException("invalid adapter type string " + string);
+        }
+    }
+
+    //endregion
+
+
     //region PeerConnection.IceTransportsType
 
     @NonNull
@@ -627,8 +1056,8 @@ final class WebRTCConverter {
         json.putString("label", dataChannel.label());
         json.putString("readyState", dataChannelStateStringValue(dataChannel.state()));
         final long bufferedAmount = dataChannel.bufferedAmount();
-        // XXX(kdxu): putLong()が存在しない。putIntでは桁落ちする危険性があるが、暫定的に intValue に変換することで対応する
-        json.putInt("bufferedAmount", (int) bufferedAmount);
+        // XXX: putLong()が存在しないため、桁落ちしないよう double として渡す
+        json.putDouble("bufferedAmount", bufferedAmount);
         json.putString("valueTag", valueTag);
         return json;
     }
@@ -667,8 +1096,28 @@ final class WebRTCConverter {
 
     //region DataChannel.Buffer
 
+    /**
+     * JS から渡された送信データを DataChannel.Buffer に変換します。
+     * バイナリデータは `blob` ({ blobId, offset, size }) で渡された場合は BlobModule から直接バイト列を取り出し、
+     * `data` で渡された場合は従来通り base64 decode します。
+     */
     @NonNull
-    static DataChannel.Buffer dataChannelBuffer(@NonNull final ReadableMap json) {
+    static DataChannel.Buffer dataChannelBuffer(@NonNull final ReadableMap json, @Nullable final BlobModule blobModule) {
+        final ReadableMap blobJson = map(json, "blob");
+        if (blobJson != null) {
+            if (blobModule == null) {
+                throw new IllegalStateException("BlobModule is not available");
+            }
+            final String blobId = string(blobJson, "blobId");
+            if (blobId == null) {
+                throw new IllegalArgumentException("invalid dataChannelBuffer");
+            }
+            final byte[] bytes = blobModule.resolve(blobId, jint(blobJson, "offset"), jint(blobJson, "size", -1));
+            if (bytes == null) {
+                throw new IllegalArgumentException("blob is not found");
+            }
+            return new DataChannel.Buffer(ByteBuffer.wrap(bytes), true);
+        }
         if (!json.hasKey("binary")) {
             throw new IllegalArgumentException("invalid dataChannelBuffer");
         }
@@ -693,6 +1142,21 @@ final class WebRTCConverter {
         return buffer;
     }
 
+    /**
+     * ByteBuffer の position から limit までをバイト列として取り出します。
+     * libwebrtc から渡されるのは direct buffer のため、ここで 1 回だけコピーが発生します。
+     */
+    @NonNull
+    static byte[] byteArray(@NonNull final ByteBuffer byteBuffer) {
+        final ByteBuffer buffer = byteBuffer.duplicate();
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
 
     // region DataChannel.State
 
@@ -714,6 +1178,88 @@ final class WebRTCConverter {
 
     // endregion
 
+    //region RTCStatsReport
+
+    /**
+     * RTCStatsReport を JS 側に渡すための配列に変換します。
+     * types が指定されている場合は、その type に一致する統計情報のみを変換します。
+     * 不要な統計情報をブリッジに流さないよう、フィルタリングはネイティブ側で行います。
+     */
+    @NonNull
+    static WritableArray rtcStatsReportJsonValue(@NonNull final RTCStatsReport report,
+                                                 @Nullable final Set<String> types) {
+        final WritableArray json = Arguments.createArray();
+        for (final RTCStats stats : report.getStatsMap().values()) {
+            if (types != null && !types.contains(stats.getType())) {
+                continue;
+            }
+            json.pushMap(rtcStatsJsonValue(stats));
+        }
+        return json;
+    }
+
+    @NonNull
+    static WritableMap rtcStatsJsonValue(@NonNull final RTCStats stats) {
+        final WritableMap json = Arguments.createMap();
+        json.putString("id", stats.getId());
+        json.putString("type", stats.getType());
+        // JS 側の DOMHighResTimeStamp に合わせてミリ秒に変換する
+        json.putDouble("timestamp", stats.getTimestampUs() / 1000.0);
+        for (final Map.Entry<String, Object> member : stats.getMembers().entrySet()) {
+            putRtcStatsMember(json, member.getKey(), member.getValue());
+        }
+        return json;
+    }
+
+    private static void putRtcStatsMember(@NonNull final WritableMap json,
+                                          @NonNull final String key,
+                                          @Nullable final Object value) {
+        if (value == null) {
+            json.putNull(key);
+        } else if (value instanceof Boolean) {
+            json.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Integer) {
+            json.putInt(key, (Integer) value);
+        } else if (value instanceof Number) {
+            // XXX: putLong()が存在しないため、uint32 (Long) / uint64 (BigInteger) / double はすべて double として渡す
+            //      2^53 を超える値は精度が落ちるが、統計情報の用途では問題にならない
+            json.putDouble(key, ((Number) value).doubleValue());
+        } else if (value instanceof String) {
+            json.putString(key, (String) value);
+        } else if (value instanceof Object[]) {
+            json.putArray(key, rtcStatsMemberArray((Object[]) value));
+        } else if (value instanceof Map) {
+            final WritableMap obj = Arguments.createMap();
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                putRtcStatsMember(obj, String.valueOf(entry.getKey()), entry.getValue());
+            }
+            json.putMap(key, obj);
+        } else {
+            json.putString(key, value.toString());
+        }
+    }
+
+    @NonNull
+    private static WritableArray rtcStatsMemberArray(@NonNull final Object[] values) {
+        final WritableArray array = Arguments.createArray();
+        for (final Object value : values) {
+            if (value == null) {
+                array.pushNull();
+            } else if (value instanceof Boolean) {
+                array.pushBoolean((Boolean) value);
+            } else if (value instanceof Integer) {
+                array.pushInt((Integer) value);
+            } else if (value instanceof Number) {
+                array.pushDouble(((Number) value).doubleValue());
+            } else {
+                array.pushString(value.toString());
+            }
+        }
+        return array;
+    }
+
+    //endregion
+
     @NonNull
     static List<String> toStringList(@NonNull final ReadableArray arrayJson) {
         List<String> result = new ArrayList<>();
@@ -6,16 +6,18 @@ import android.util.Log;
 import android.util.Pair;
 import android.util.Base64;
 
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.blob.BlobModule;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
 import org.webrtc.DataChannel;
 
+import static jp.shiguredo.react.webrtckit.WebRTCConverter.byteArray;
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.dataChannelStateStringValue;
 
 final class WebRTCDataChannelObserver implements DataChannel.Observer {
@@ -26,7 +28,29 @@ final class WebRTCDataChannelObserver implements DataChannel.Observer {
      * First is valueTag, Seconds is DataChannel.
      */
     @Nullable
-    Pair<String, DataChannel> dataChannelPair = null;
+    volatile Pair<String, DataChannel> dataChannelPair = null;
+    /**
+     * true の場合、受信したバイナリデータを base64 encode せずに BlobModule に格納し、blob の参照だけを JS 側に通知します。
+     * JS 側の binaryType の変更はモジュールのスレッドから、参照は signaling スレッドから行われるため volatile にしています。
+     */
+    volatile boolean usesBlobForBinary = false;
+    /**
+     * フロー制御を一度でも有効にした場合の送信キューです。
+     * フロー制御が有効な場合は bufferedAmount の変化ごとのイベント通知は行わず、lowWatermark を下回ったときのみ通知します。
+     * 無効にした後も、送信順序を保つためにキューを使い続けます。
+     */
+    @Nullable
+    volatile WebRTCDataChannelSendQueue sendQueue = null;
+    /**
+     * 送信中のファイル転送です。bufferedAmount の変化を通知します。
+     */
+    @Nullable
+    volatile WebRTCFileTransfer.Sender fileSender = null;
+    /**
+     * 受信中のファイル転送です。設定されている間、受信したバイナリメッセージはすべてファイルに書き込み、JS 側には通知しません。
+     */
+    @Nullable
+    volatile WebRTCFileTransfer.Receiver fileReceiver = null;
 
     WebRTCDataChannelObserver(@NonNull final ReactContext reactContext) {
         this.reactContext = reactContext;
@@ -70,6 +94,13 @@ final class WebRTCDataChannelObserver implements DataChannel.Observer {
         Log.d("DataChannelObserver", "onStateChange()[" + dataChannelPair.first + "] - newReadyState=" + state);
         // state が closed な場合 finish してモジュールの管理下から dataChannel を除く
         if (state == DataChannel.State.CLOSED) {
+            // close 前に受信したメッセージを取りこぼさないように通知しておく
+            setMessageBatching(null);
+            cancelFileTransfers();
+            final WebRTCDataChannelSendQueue queue = sendQueue;
+            if (queue != null) {
+                queue.close();
+            }
             finish();
         }
         params.putString("readyState", dataChannelStateStringValue(dataChannel.state()));
@@ -77,33 +108,93 @@ final class WebRTCDataChannelObserver implements DataChannel.Observer {
     }
 
     @Override
-     public void onBufferedAmountChange(long previousAmount) {
+    public void onBufferedAmountChange(long previousAmount) {
         if (dataChannelPair == null) return;
+        final WebRTCFileTransfer.Sender sender = fileSender;
+        if (sender != null) {
+            sender.onBufferedAmountChange();
+        }
+        final WebRTCDataChannelSendQueue queue = sendQueue;
+        if (queue != null) {
+            queue.onBufferedAmountChange();
+            if (queue.isFlowControlEnabled()) return;
+        }
         final WritableMap params = Arguments.createMap();
         params.putString("valueTag", dataChannelPair.first);
         final DataChannel dataChannel = dataChannelPair.second;
         Log.d("DataChannelObserver", "onBufferedAmountChange()[" + dataChannelPair.first + "] - newBufferedAmount=" + dataChannel.bufferedAmount());
         final long bufferedAmount = dataChannel.bufferedAmount();
-        // XXX(kdxu): putLong()が存在しない。putIntでは桁落ちする危険性があるが、暫定的に intValue に変換することで対応する
-        params.putInt("bufferedAmount", (int) bufferedAmount);
+        // XXX: putLong()が存在しないため、桁落ちしないよう double として渡す
+        params.putDouble("bufferedAmount", bufferedAmount);
         sendDeviceEvent("dataChannelOnChangeBufferedAmount", params);
     }
 
+    /**
+     * 送信キューから呼び出されます。
+     */
+    void onBufferedAmountLow(long bufferedAmount) {
+        final Pair<String, DataChannel> pair = dataChannelPair;
+        if (pair == null) return;
+        Log.d("DataChannelObserver", "onBufferedAmountLow()[" + pair.first + "] - bufferedAmount=" + bufferedAmount);
+        final WritableMap params = Arguments.createMap();
+        params.putString("valueTag", pair.first);
+        params.putDouble("bufferedAmount", bufferedAmount);
+        sendDeviceEvent("dataChannelOnBufferedAmountLow", params);
+    }
+
     @Override
     public void onMessage(DataChannel.Buffer buffer) {
         if (dataChannelPair == null) return;
-        WritableMap params = Arguments.createMap();
-        params.putString("valueTag", dataChannelPair.first);
+        final WebRTCFileTransfer.Receiver receiver = fileReceiver;
+        if (receiver != null && buffer.binary && receiver.enqueue(buffer.data)) {
+            return;
+        }
+        final String valueTag = dataChannelPair.first;
+        final int size = buffer.data.remaining();
+        final WritableMap message = messageJsonValue(buffer);
 
-        // ByteBuffer を string に変換する前処理
-        // cf: https://stackoverflow.com/a/308562520
-        final ByteBuffer bufferData = buffer.data;
-        byte[] bytes;
-        if (bufferData.hasArray()) {
-            bytes = bufferData.array();
-        } else {
-            bytes = new byte[bufferData.remaining()];
-            bufferData.get(bytes);
+        synchronized (batchLock) {
+            if (batching != null) {
+                if (pendingMessages == null) {
+                    pendingMessages = Arguments.createArray();
+                    getModule().getWorkerHandler().postDelayed(flushTask, batching.flushIntervalMs);
+                }
+                pendingMessages.pushMap(message);
+                pendingCount++;
+                pendingBytes += size;
+                if (pendingCount >= batching.maxCount || pendingBytes >= batching.maxBytes) {
+                    flushPendingMessages();
+                }
+                return;
+            }
+        }
+
+        message.putString("valueTag", valueTag);
+        sendDeviceEvent("dataChannelOnMessage", message);
+    }
+
+    //endregion
+
+    /**
+     * 受信したメッセージを JS 側に渡すための WritableMap に変換します。
+     * valueTag は含みません。
+     */
+    @NonNull
+    private WritableMap messageJsonValue(@NonNull final DataChannel.Buffer buffer) {
+        final WritableMap params = Arguments.createMap();
+        final byte[] bytes = byteArray(buffer.data);
+
+        if (buffer.binary && usesBlobForBinary) {
+            // blob モードの場合、バイト列を BlobModule に格納して参照だけを JS レイヤーに通知する
+            // base64 encode/decode と String の生成を省略できる
+            final BlobModule blobModule = reactContext.getNativeModule(BlobModule.class);
+            final WritableMap blob = Arguments.createMap();
+            blob.putString("blobId", blobModule.store(bytes));
+            blob.putInt("offset", 0);
+            blob.putInt("size", bytes.length);
+            params.putMap("blob", blob);
+            params.putBoolean("binary", true);
+            return params;
         }
 
         String data;
@@ -119,7 +210,87 @@ final class WebRTCDataChannelObserver implements DataChannel.Observer {
         }
         params.putString("data", data);
         params.putBoolean("binary", buffer.binary);
-        sendDeviceEvent("dataChannelOnMessage", params);
+        return params;
     }
+
+    /**
+     * 実行中のファイル転送をすべて中止します。
+     */
+    void cancelFileTransfers() {
+        final WebRTCFileTransfer.Sender sender = fileSender;
+        if (sender != null) {
+            sender.cancel();
+        }
+        final WebRTCFileTransfer.Receiver receiver = fileReceiver;
+        if (receiver != null) {
+            receiver.cancel();
+        }
+    }
+
+    //region Message batching
+
+    /**
+     * 受信メッセージをまとめて通知する際の条件です。
+     * いずれかの上限に達するか、最初のメッセージを受信してから flushIntervalMs が経過した時点でまとめて通知します。
+     */
+    static final class MessageBatching {
+        final int maxCount;
+        final long maxBytes;
+        final int flushIntervalMs;
+
+        MessageBatching(final int maxCount, final long maxBytes, final int flushIntervalMs) {
+            this.maxCount = maxCount;
+            this.maxBytes = maxBytes;
+            this.flushIntervalMs = flushIntervalMs;
+        }
+    }
+
+    /**
+     * onMessage() は signaling スレッド、タイマーはワーカースレッド、設定の変更はモジュールのスレッドから行われるため、
+     * 以下のフィールドはすべて batchLock で保護します。
+     */
+    private final Object batchLock = new Object();
+    @Nullable
+    private MessageBatching batching = null;
+    @Nullable
+    private WritableArray pendingMessages = null;
+    private int pendingCount = 0;
+    private long pendingBytes = 0;
+
+    private final Runnable flushTask = () -> {
+        synchronized (batchLock) {
+            flushPendingMessages();
+        }
+    };
+
+    /**
+     * 受信メッセージをまとめて `dataChannelOnMessages` イベントで通知するようにします。
+     * null を指定すると従来通り 1 メッセージごとに `dataChannelOnMessage` イベントで通知します。
+     * その際、未通知のメッセージがあれば即座に通知します。
+     */
+    void setMessageBatching(@Nullable final MessageBatching batching) {
+        synchronized (batchLock) {
+            flushPendingMessages();
+            this.batching = batching;
+        }
+    }
+
+    /**
+     * batchLock を取得した状態で呼び出してください。
+     */
+    private void flushPendingMessages() {
+        if (pendingMessages == null) return;
+        final WritableArray messages = pendingMessages;
+        pendingMessages = null;
+        pendingCount = 0;
+        pendingBytes = 0;
+        getModule().getWorkerHandler().removeCallbacks(flushTask);
+        if (dataChannelPair == null) return;
+        final WritableMap params = Arguments.createMap();
+        params.putString("valueTag", dataChannelPair.first);
+        params.putArray("messages", messages);
+        sendDeviceEvent("dataChannelOnMessages", params);
+    }
+
     //endregion
 }
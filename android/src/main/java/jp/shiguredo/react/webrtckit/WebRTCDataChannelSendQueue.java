@@ -0,0 +1,188 @@
+package jp.shiguredo.react.webrtckit;
+
+import androidx.annotation.NonNull;
+import android.os.Handler;
+import android.util.Log;
+
+import org.webrtc.DataChannel;
+
+import java.util.ArrayDeque;
+
+/**
+ * DataChannel の送信キューです。
+ * DataChannel の bufferedAmount が highWatermark を超えている間は送信を保留し、
+ * onBufferedAmountChange() を契機に送信を再開します。
+ * <p>
+ * DataChannel.send() は signaling スレッドに同期的にディスパッチされるため、
+ * signaling スレッドから呼ばれる onBufferedAmountChange() の中でロックを取ったまま送信するとデッドロックする恐れがあります。
+ * そのため実際の送信はすべてワーカースレッド上で、ロックを取らずに行います。
+ * ワーカースレッドだけが送信を行うので、送信順序は保証されます。
+ */
+final class WebRTCDataChannelSendQueue {
+
+    static final long DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+    static final long DEFAULT_LOW_WATERMARK = 256 * 1024;
+
+    interface Listener {
+        /**
+         * bufferedAmount とキューに残っているバイト数の合計が lowWatermark 以下になったときに、ワーカースレッドで呼び出されます。
+         */
+        void onBufferedAmountLow(long bufferedAmount);
+    }
+
+    @NonNull
+    private final DataChannel dataChannel;
+    @NonNull
+    private final Handler handler;
+    @NonNull
+    private final Listener listener;
+    private volatile long highWatermark;
+    private volatile long lowWatermark;
+
+    /**
+     * 以下のフィールドは this で保護します。
+     */
+    private final ArrayDeque<DataChannel.Buffer> queue = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    private boolean isAboveLowWatermark = false;
+    private boolean isDrainScheduled = false;
+    /**
+     * close() 済みの場合 true になり、以降の enqueue() は失敗します。
+     */
+    private boolean isClosed = false;
+    /**
+     * true の場合、highWatermark を無視して残りのキューをすべて送信します。
+     * フロー制御を無効にしても送信順序を保つため、キューは破棄せずにこの状態で使い続けます。
+     */
+    private volatile boolean isFlushing = false;
+
+    private final Runnable drainTask = this::drain;
+
+    WebRTCDataChannelSendQueue(@NonNull final DataChannel dataChannel,
+                               @NonNull final Handler handler,
+                               final long highWatermark,
+                               final long lowWatermark,
+                               @NonNull final Listener listener) {
+        this.dataChannel = dataChannel;
+        this.handler = handler;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+        this.listener = listener;
+    }
+
+    /**
+     * 送信データをキューに追加し、送信を予約します。
+     *
+     * @return close() 済みでキューに追加できなかった場合 false
+     */
+    boolean enqueue(@NonNull final DataChannel.Buffer buffer) {
+        synchronized (this) {
+            if (isClosed) return false;
+            queue.add(buffer);
+            queuedBytes += buffer.data.remaining();
+        }
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * DataChannel が閉じたときに呼び出してください。キューに残っているデータを破棄し、以降の enqueue() を失敗させます。
+     * 閉じた DataChannel ではキューのデータが送信されることはないためです。
+     */
+    void close() {
+        final int dropped;
+        synchronized (this) {
+            isClosed = true;
+            dropped = queue.size();
+            queue.clear();
+            queuedBytes = 0;
+        }
+        handler.removeCallbacks(drainTask);
+        if (dropped > 0) {
+            Log.d("WebRTCModule", "WebRTCDataChannelSendQueue close() - dropped " + dropped + " messages");
+        }
+    }
+
+    /**
+     * キューに残っているバイト数を返します。
+     */
+    synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * DataChannel の bufferedAmount が変化したときに呼び出してください。
+     */
+    void onBufferedAmountChange() {
+        scheduleDrain();
+    }
+
+    /**
+     * フロー制御をやめ、キューに残っているデータを bufferedAmount に関係なくすべて送信します。
+     * 以降 enqueue() されたデータも即座に送信されます。
+     */
+    void flush() {
+        isFlushing = true;
+        scheduleDrain();
+    }
+
+    /**
+     * 閾値を変更し、フロー制御を (再び) 有効にします。キューに残っているデータはそのまま順番に送信します。
+     */
+    void configure(final long highWatermark, final long lowWatermark) {
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+        isFlushing = false;
+        scheduleDrain();
+    }
+
+    boolean isFlowControlEnabled() {
+        return !isFlushing;
+    }
+
+    private void scheduleDrain() {
+        synchronized (this) {
+            if (isDrainScheduled) return;
+            isDrainScheduled = true;
+        }
+        handler.post(drainTask);
+    }
+
+    private void drain() {
+        synchronized (this) {
+            isDrainScheduled = false;
+        }
+        while (dataChannel.state() == DataChannel.State.OPEN
+                && (isFlushing || dataChannel.bufferedAmount() < highWatermark)) {
+            final DataChannel.Buffer buffer;
+            final int size;
+            synchronized (this) {
+                buffer = queue.peek();
+                if (buffer == null) break;
+                size = buffer.data.remaining();
+            }
+            if (!dataChannel.send(buffer)) {
+                // SCTP のバッファが一杯の場合などは失敗するので、次の onBufferedAmountChange() で再送する
+                Log.d("WebRTCModule", "WebRTCDataChannelSendQueue drain() - send failed, retry later");
+                break;
+            }
+            synchronized (this) {
+                // 送信中に close() された場合、キューはすでに空になっている
+                if (isClosed) break;
+                queue.poll();
+                queuedBytes -= size;
+            }
+        }
+
+        final long total = dataChannel.bufferedAmount() + getQueuedBytes();
+        final boolean isBelowLowWatermark;
+        synchronized (this) {
+            isBelowLowWatermark = isAboveLowWatermark && total <= lowWatermark;
+            isAboveLowWatermark = total > lowWatermark;
+        }
+        if (isBelowLowWatermark && !isFlushing) {
+            listener.onBufferedAmountLow(total);
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package jp.shiguredo.react.webrtckit;
+
+import androidx.annotation.NonNull;
+import android.content.Context;
+import android.util.Log;
+
+import org.webrtc.EglBase;
+import org.webrtc.HardwareVideoDecoderFactory;
+import org.webrtc.HardwareVideoEncoderFactory;
+import org.webrtc.Logging;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.SoftwareVideoDecoderFactory;
+import org.webrtc.SoftwareVideoEncoderFactory;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoDecoderFactory;
+import org.webrtc.VideoEncoderFactory;
+
+/**
+ * 生成に時間のかかる WebRTC のオブジェクト (PeerConnectionFactory, EglBase など) をまとめて保持します。
+ * PeerConnectionFactory の初期化はネイティブライブラリのロードを伴うため、
+ * アプリの起動を遅らせないよう WebRTCModule がバックグラウンドのスレッドで生成します。
+ */
+final class WebRTCEngine {
+
+    @NonNull
+    final EglBase eglBase;
+    @NonNull
+    final PeerConnectionFactory peerConnectionFactory;
+    @NonNull
+    final WebRTCCodecCapabilities codecCapabilities;
+    @NonNull
+    final WebRTCCamera cameraCapturer;
+    /**
+     * XXX: Maybe we should move the surfaceTextureHelper to the WebRTCCamera so that the camera module handles all capturing tasks instead of this module
+     */
+    @NonNull
+    final SurfaceTextureHelper surfaceTextureHelper;
+
+    private WebRTCEngine(@NonNull final EglBase eglBase,
+                         @NonNull final PeerConnectionFactory peerConnectionFactory,
+                         @NonNull final WebRTCCodecCapabilities codecCapabilities,
+                         @NonNull final WebRTCCamera cameraCapturer,
+                         @NonNull final SurfaceTextureHelper surfaceTextureHelper) {
+        this.eglBase = eglBase;
+        this.peerConnectionFactory = peerConnectionFactory;
+        this.codecCapabilities = codecCapabilities;
+        this.cameraCapturer = cameraCapturer;
+        this.surfaceTextureHelper = surfaceTextureHelper;
+    }
+
+    /**
+     * 各オブジェクトを生成します。呼び出したスレッドで同期的に処理するので、メインスレッドからは呼び出さないでください。
+     */
+    @NonNull
+    static WebRTCEngine create(@NonNull final Context context) {
+        final long start = System.currentTimeMillis();
+
+        // PeerConnectionFactory自体を最初に初期化する必要がある
+        final PeerConnectionFactory.InitializationOptions pcfInitializationOptions =
+                PeerConnectionFactory.InitializationOptions.builder(context)
+                        .setEnableInternalTracer(false)
+                        .setFieldTrials("")
+                        .createInitializationOptions();
+        PeerConnectionFactory.initialize(pcfInitializationOptions);
+
+        // WebRTCのロギングを有効化する
+        // XXX: 不要になったら削除するかも、またはデバッグビルドでのみ有効にする必要があるかも
+        Logging.enableLogToDebugOutput(Logging.Severity.LS_INFO);
+
+        // 端末で利用可能なコーデックを調査し (結果は端末ごとにキャッシュされる)、その結果に従ってエンコーダー・デコーダーを選択する
+        // XXX: HardwareVideoEncoderFactory の Intel VP8 / H264 High Profile は従来通り決め打ちで有効にしている
+        final EglBase eglBase = EglBase.create();
+        final VideoEncoderFactory hardwareEncoderFactory =
+                new HardwareVideoEncoderFactory(eglBase.getEglBaseContext(), true, true);
+        final VideoEncoderFactory softwareEncoderFactory = new SoftwareVideoEncoderFactory();
+        final VideoDecoderFactory hardwareDecoderFactory = new HardwareVideoDecoderFactory(eglBase.getEglBaseContext());
+        final VideoDecoderFactory softwareDecoderFactory = new SoftwareVideoDecoderFactory();
+        final WebRTCCodecCapabilities codecCapabilities = WebRTCCodecCapabilities.load(context,
+                hardwareEncoderFactory, softwareEncoderFactory, hardwareDecoderFactory, softwareDecoderFactory);
+        final PeerConnectionFactory peerConnectionFactory = PeerConnectionFactory.builder()
+                .setVideoEncoderFactory(new WebRTCCodecCapabilities.EncoderFactory(
+                        codecCapabilities, hardwareEncoderFactory, softwareEncoderFactory))
+                .setVideoDecoderFactory(new WebRTCCodecCapabilities.DecoderFactory(
+                        codecCapabilities, hardwareDecoderFactory, softwareDecoderFactory))
+                .createPeerConnectionFactory();
+        final WebRTCCamera cameraCapturer = new WebRTCCamera(context);
+        final SurfaceTextureHelper surfaceTextureHelper =
+                SurfaceTextureHelper.create("WebRTCCameraCaptureThread", eglBase.getEglBaseContext());
+
+        Log.d("WebRTCModule", "WebRTCEngine create() - " + (System.currentTimeMillis() - start) + "ms");
+        return new WebRTCEngine(eglBase, peerConnectionFactory, codecCapabilities, cameraCapturer, surfaceTextureHelper);
+    }
+
+    /**
+     * すべてのオブジェクトを破棄します。
+     */
+    void dispose() {
+        cameraCapturer.stopCapture();
+        cameraCapturer.stopMonitoring();
+        peerConnectionFactory.dispose();
+        surfaceTextureHelper.dispose();
+        eglBase.release();
+    }
+
+}
@@ -0,0 +1,382 @@
+package jp.shiguredo.react.webrtckit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import org.webrtc.DataChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * DataChannel を使ってファイルをチャンク単位で送受信します。
+ * 送信側はファイルを FileChannel で読み出し、使い回しの direct ByteBuffer に詰めてそのまま DataChannel に渡します。
+ * 受信側は受信したバイナリメッセージを使い回しのバッファにコピーし、FileChannel に書き込みます。
+ * いずれの場合もファイルの内容が JS のブリッジを通ることはありません。
+ * <p>
+ * ファイルの読み書きは、コンストラクタで渡された Handler のスレッド (ファイル I/O 専用のスレッド) で行います。
+ * signaling スレッドでファイルを読み書きすると、すべての PeerConnection のシグナリングや統計情報の取得が止まってしまうためです。
+ * <p>
+ * 送受信するのはファイルの内容のみです。ファイル名やサイズなどのメタデータは、アプリケーション側でテキストメッセージ等を使ってやり取りしてください。
+ * 受信中のバイナリメッセージはすべてファイルの内容として扱われるため、ファイル転送には専用の DataChannel を使うことを推奨します。
+ */
+final class WebRTCFileTransfer {
+
+    static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    static final long DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+    static final int DEFAULT_PROGRESS_INTERVAL_MS = 250;
+    /**
+     * bufferedAmount に余裕があるのに send() が失敗した場合に、再送を試みるまでの間隔と回数です。
+     * bufferedAmount が変化しないと onBufferedAmountChange() が呼ばれないため、タイマーで再送します。
+     */
+    private static final int SEND_RETRY_INTERVAL_MS = 50;
+    private static final int MAX_SEND_RETRIES = 20;
+
+    private WebRTCFileTransfer() {
+    }
+
+    /**
+     * file:// や content:// の URI、またはファイルパスから読み出し用の FileChannel を開きます。
+     */
+    @NonNull
+    static FileChannel openForRead(@NonNull final Context context, @NonNull final String uriString) throws IOException {
+        final Uri uri = Uri.parse(uriString);
+        if ("content".equals(uri.getScheme())) {
+            final ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (descriptor == null) {
+                throw new IOException("cannot open " + uriString);
+            }
+            return new ParcelFileDescriptor.AutoCloseInputStream(descriptor).getChannel();
+        }
+        return new FileInputStream(toFile(uri, uriString)).getChannel();
+    }
+
+    /**
+     * file:// の URI またはファイルパスから書き込み用の FileChannel を開きます。
+     */
+    @NonNull
+    static FileChannel openForWrite(@NonNull final String uriString) throws IOException {
+        return new FileOutputStream(toFile(Uri.parse(uriString), uriString)).getChannel();
+    }
+
+    @NonNull
+    private static File toFile(@NonNull final Uri uri, @NonNull final String uriString) {
+        if ("file".equals(uri.getScheme()) && uri.getPath() != null) {
+            return new File(uri.getPath());
+        }
+        return new File(uriString);
+    }
+
+    /**
+     * 進捗を `dataChannelFileTransferProgress` イベントで通知します。
+     * 通知は progressIntervalMs に 1 回までに間引きますが、完了時は必ず通知します。
+     */
+    private static abstract class Transfer {
+        @NonNull
+        final ReactContext reactContext;
+        @NonNull
+        final String valueTag;
+        @NonNull
+        final Promise promise;
+        @NonNull
+        final FileChannel fileChannel;
+        final long totalBytes;
+        final int progressIntervalMs;
+        long transferredBytes = 0;
+        private long lastProgressTime = 0;
+        boolean isFinished = false;
+        /**
+         * 転送が終了 (完了・失敗・中止) したときに呼び出されます。
+         */
+        @Nullable
+        Runnable onFinished = null;
+
+        Transfer(@NonNull final ReactContext reactContext,
+                 @NonNull final String valueTag,
+                 @NonNull final FileChannel fileChannel,
+                 final long totalBytes,
+                 final int progressIntervalMs,
+                 @NonNull final Promise promise) {
+            this.reactContext = reactContext;
+            this.valueTag = valueTag;
+            this.fileChannel = fileChannel;
+            this.totalBytes = totalBytes;
+            this.progressIntervalMs = progressIntervalMs;
+            this.promise = promise;
+        }
+
+        @NonNull
+        abstract String direction();
+
+        void notifyProgress(boolean force) {
+            final long now = SystemClock.elapsedRealtime();
+            if (!force && now - lastProgressTime < progressIntervalMs) {
+                return;
+            }
+            lastProgressTime = now;
+            final WritableMap params = Arguments.createMap();
+            params.putString("valueTag", valueTag);
+            params.putString("direction", direction());
+            // XXX: putLong()が存在しないため double として渡す
+            params.putDouble("transferredBytes", transferredBytes);
+            params.putDouble("totalBytes", totalBytes);
+            reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                    .emit("dataChannelFileTransferProgress", params);
+        }
+
+        void finish(@Nullable final String errorCode, @Nullable final String errorMessage) {
+            if (isFinished) return;
+            isFinished = true;
+            try {
+                fileChannel.close();
+            } catch (final IOException e) {
+                Log.e("WebRTCModule", "WebRTCFileTransfer close()", e);
+            }
+            if (onFinished != null) {
+                onFinished.run();
+            }
+            if (errorCode == null) {
+                notifyProgress(true);
+                final WritableMap result = Arguments.createMap();
+                result.putDouble("transferredBytes", transferredBytes);
+                promise.resolve(result);
+            } else {
+                promise.reject(errorCode, errorMessage);
+            }
+        }
+
+        /**
+         * 転送を中止します。
+         */
+        abstract void cancel();
+    }
+
+    /**
+     * ファイルを送信します。
+     * 送信はすべてコンストラクタで渡された Handler のスレッド上で行い、
+     * bufferedAmount が highWatermark を超えたら onBufferedAmountChange() が呼ばれるまで送信を保留します。
+     */
+    static final class Sender extends Transfer {
+        @NonNull
+        private final DataChannel dataChannel;
+        @NonNull
+        private final Handler handler;
+        private final long highWatermark;
+        @NonNull
+        private final ByteBuffer chunk;
+        private final Runnable pumpTask = this::pump;
+        /**
+         * bufferedAmount に余裕があるのに send() が連続して失敗した回数です。
+         */
+        private int sendRetries = 0;
+
+        Sender(@NonNull final ReactContext reactContext,
+               @NonNull final String valueTag,
+               @NonNull final DataChannel dataChannel,
+               @NonNull final Handler handler,
+               @NonNull final FileChannel fileChannel,
+               final int chunkSize,
+               final long highWatermark,
+               final int progressIntervalMs,
+               @NonNull final Promise promise) throws IOException {
+            super(reactContext, valueTag, fileChannel, fileChannel.size(), progressIntervalMs, promise);
+            this.dataChannel = dataChannel;
+            this.handler = handler;
+            this.highWatermark = highWatermark;
+            this.chunk = ByteBuffer.allocateDirect(chunkSize);
+        }
+
+        @NonNull
+        @Override
+        String direction() {
+            return "send";
+        }
+
+        void start() {
+            handler.post(pumpTask);
+        }
+
+        /**
+         * DataChannel の bufferedAmount が変化したときに呼び出してください。
+         */
+        void onBufferedAmountChange() {
+            handler.removeCallbacks(pumpTask);
+            handler.post(pumpTask);
+        }
+
+        @Override
+        void cancel() {
+            handler.post(() -> finish("AbortError", "file transfer is cancelled"));
+        }
+
+        private void pump() {
+            if (isFinished) return;
+            try {
+                while (dataChannel.bufferedAmount() < highWatermark) {
+                    if (dataChannel.state() != DataChannel.State.OPEN) {
+                        finish("InvalidStateError", "dataChannel is not open");
+                        return;
+                    }
+                    if (transferredBytes >= totalBytes) {
+                        finish(null, null);
+                        return;
+                    }
+                    chunk.clear();
+                    final int read = fileChannel.read(chunk);
+                    if (read < 0) {
+                        finish(null, null);
+                        return;
+                    }
+                    chunk.flip();
+                    // DataChannel.send() は内部でデータをコピーするため、送信後は chunk をそのまま使い回せる
+                    if (!dataChannel.send(new DataChannel.Buffer(chunk, true))) {
+                        // 読み込んだ位置を巻き戻して再送する
+                        fileChannel.position(transferredBytes);
+                        if (dataChannel.bufferedAmount() >= highWatermark) {
+                            // バッファが一杯の場合は次の onBufferedAmountChange() で再送する
+                            return;
+                        }
+                        // バッファに余裕がある場合は onBufferedAmountChange() が呼ばれない可能性があるので、タイマーで再送する
+                        if (++sendRetries > MAX_SEND_RETRIES) {
+                            finish("OperationError", "failed to send a chunk");
+                            return;
+                        }
+                        handler.removeCallbacks(pumpTask);
+                        handler.postDelayed(pumpTask, SEND_RETRY_INTERVAL_MS);
+                        return;
+                    }
+                    sendRetries = 0;
+                    transferredBytes += read;
+                    notifyProgress(false);
+                }
+            } catch (final IOException e) {
+                Log.e("WebRTCModule", "WebRTCFileTransfer.Sender pump()", e);
+                finish("NotReadableError", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 受信したバイナリメッセージをファイルに書き込みます。
+     * 受信したバッファは onMessage() の中でしか有効でないため、signaling スレッドで使い回しのバッファにコピーし、
+     * 書き込みはコンストラクタで渡された Handler のスレッドで行います。
+     */
+    static final class Receiver extends Transfer {
+        /**
+         * 使い回すバッファの最大数です。これを超えて書き込み待ちのバッファが返却された場合は破棄します。
+         */
+        private static final int MAX_POOLED_BUFFERS = 16;
+
+        @NonNull
+        private final Handler handler;
+        /**
+         * 使い回しのバッファです。signaling スレッドと Handler のスレッドから参照するため、自身で保護します。
+         */
+        private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+        /**
+         * signaling スレッドからのみ参照します。書き込み待ちのものを含めて受け付けたバイト数です。
+         */
+        private long acceptedBytes = 0;
+        /**
+         * cancel() された場合に true にし、以降のメッセージを受け付けません。
+         */
+        private volatile boolean isCancelled = false;
+
+        Receiver(@NonNull final ReactContext reactContext,
+                 @NonNull final String valueTag,
+                 @NonNull final Handler handler,
+                 @NonNull final FileChannel fileChannel,
+                 final long totalBytes,
+                 final int progressIntervalMs,
+                 @NonNull final Promise promise) {
+            super(reactContext, valueTag, fileChannel, totalBytes, progressIntervalMs, promise);
+            this.handler = handler;
+        }
+
+        @NonNull
+        @Override
+        String direction() {
+            return "receive";
+        }
+
+        /**
+         * 受信したチャンクをコピーし、書き込みを予約します。signaling スレッドから呼び出してください。
+         *
+         * @return チャンクを受け付けた場合 true。すでに size バイトを受け付けたか、中止された場合は false
+         */
+        boolean enqueue(@NonNull final ByteBuffer data) {
+            if (isCancelled || acceptedBytes >= totalBytes) return false;
+            final int size = data.remaining();
+            acceptedBytes += size;
+            final ByteBuffer buffer = obtainBuffer(size);
+            buffer.put(data.duplicate());
+            buffer.flip();
+            handler.post(() -> write(buffer));
+            return true;
+        }
+
+        private void write(@NonNull final ByteBuffer buffer) {
+            try {
+                if (isFinished) return;
+                while (buffer.hasRemaining()) {
+                    transferredBytes += fileChannel.write(buffer);
+                }
+            } catch (final IOException e) {
+                Log.e("WebRTCModule", "WebRTCFileTransfer.Receiver write()", e);
+                finish("NotWritableError", e.getMessage());
+                return;
+            } finally {
+                recycleBuffer(buffer);
+            }
+            if (transferredBytes >= totalBytes) {
+                finish(null, null);
+                return;
+            }
+            notifyProgress(false);
+        }
+
+        @NonNull
+        private ByteBuffer obtainBuffer(final int size) {
+            synchronized (bufferPool) {
+                final ByteBuffer pooled = bufferPool.poll();
+                if (pooled != null && pooled.capacity() >= size) {
+                    pooled.clear();
+                    return pooled;
+                }
+            }
+            return ByteBuffer.allocateDirect(Math.max(size, DEFAULT_CHUNK_SIZE));
+        }
+
+        private void recycleBuffer(@NonNull final ByteBuffer buffer) {
+            synchronized (bufferPool) {
+                if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+                    bufferPool.add(buffer);
+                }
+            }
+        }
+
+        @Override
+        void cancel() {
+            isCancelled = true;
+            handler.post(() -> finish("AbortError", "file transfer is cancelled"));
+        }
+    }
+
+}
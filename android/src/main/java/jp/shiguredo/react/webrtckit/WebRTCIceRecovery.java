@@ -0,0 +1,218 @@
+package jp.shiguredo.react.webrtckit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.os.Handler;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import org.webrtc.PeerConnection;
+
+/**
+ * ICE の接続が切れた場合に、PeerConnection を閉じずに ICE restart で復旧を試みます。
+ * <p>
+ * DISCONNECTED になった場合は disconnectedTimeoutMs だけ自然な復旧を待ち、復旧しなければ FAILED と同様に扱います。
+ * FAILED になった場合は指数バックオフで restartIce() を呼び出し、maxRestartAttempts 回試みても復旧しなければ諦めて Listener に通知します。
+ * restartIce() は次の offer で ICE restart を行うよう指示するだけなので、JS 側は onRenegotiationNeeded を受けて再ネゴシエーションする必要があります。
+ * <p>
+ * 各段階は `peerConnectionIceRecovery` イベントで JS 側に通知します。
+ * 状態の変化は signaling スレッドから通知されますが、処理とタイマーはすべてコンストラクタで渡された Handler のスレッド上で行います。
+ * cancel() のみ呼び出し元のスレッドで同期的に行い、戻った後は restartIce() を呼び出さないことを保証します。
+ */
+final class WebRTCIceRecovery {
+
+    static final class Policy {
+        static final int DEFAULT_DISCONNECTED_TIMEOUT_MS = 5000;
+        static final int DEFAULT_MAX_RESTART_ATTEMPTS = 3;
+        static final int DEFAULT_INITIAL_BACKOFF_MS = 500;
+        static final int DEFAULT_MAX_BACKOFF_MS = 8000;
+        static final int DEFAULT_RESTART_TIMEOUT_MS = 10000;
+
+        final int disconnectedTimeoutMs;
+        final int maxRestartAttempts;
+        final int initialBackoffMs;
+        final int maxBackoffMs;
+        /**
+         * restartIce() を呼び出してから復旧するまで待つ時間です。経過しても復旧しなければ次の restart を試みます。
+         */
+        final int restartTimeoutMs;
+
+        Policy(final int disconnectedTimeoutMs,
+               final int maxRestartAttempts,
+               final int initialBackoffMs,
+               final int maxBackoffMs,
+               final int restartTimeoutMs) {
+            this.disconnectedTimeoutMs = disconnectedTimeoutMs;
+            this.maxRestartAttempts = maxRestartAttempts;
+            this.initialBackoffMs = initialBackoffMs;
+            this.maxBackoffMs = Math.max(initialBackoffMs, maxBackoffMs);
+            this.restartTimeoutMs = restartTimeoutMs;
+        }
+    }
+
+    interface Listener {
+        /**
+         * 復旧を諦めたときに、Handler のスレッドで呼び出されます。
+         */
+        void onGiveUp();
+    }
+
+    @NonNull
+    private final ReactContext reactContext;
+    @NonNull
+    private final Handler handler;
+    @NonNull
+    private final String valueTag;
+    @NonNull
+    private final PeerConnection peerConnection;
+    @NonNull
+    private final Policy policy;
+    @NonNull
+    private final Listener listener;
+
+    /**
+     * 以下のフィールドは Handler のスレッドからのみ参照します。
+     */
+    private int attempts = 0;
+    private boolean isRecovering = false;
+    private boolean isRestartScheduled = false;
+    /**
+     * cancel() から書き込むため、restartIce() の呼び出しと合わせて lock で保護します。
+     */
+    private final Object lock = new Object();
+    private volatile boolean isFinished = false;
+
+    private final Runnable disconnectedTimeoutTask = this::scheduleRestart;
+    private final Runnable restartTimeoutTask = this::scheduleRestart;
+    private final Runnable restartTask = this::restart;
+
+    WebRTCIceRecovery(@NonNull final ReactContext reactContext,
+                      @NonNull final Handler handler,
+                      @NonNull final String valueTag,
+                      @NonNull final PeerConnection peerConnection,
+                      @NonNull final Policy policy,
+                      @NonNull final Listener listener) {
+        this.reactContext = reactContext;
+        this.handler = handler;
+        this.valueTag = valueTag;
+        this.peerConnection = peerConnection;
+        this.policy = policy;
+        this.listener = listener;
+    }
+
+    void onIceConnectionChange(@NonNull final PeerConnection.IceConnectionState state) {
+        handler.post(() -> handleIceConnectionChange(state));
+    }
+
+    /**
+     * 復旧を中止します。以降の状態の変化は無視します。
+     * PeerConnection.dispose() の前に呼び出せるよう、実行中の restartIce() の完了を待ってから同期的に中止します。
+     */
+    void cancel() {
+        synchronized (lock) {
+            isFinished = true;
+        }
+        handler.removeCallbacks(disconnectedTimeoutTask);
+        handler.removeCallbacks(restartTimeoutTask);
+        handler.removeCallbacks(restartTask);
+    }
+
+    private void handleIceConnectionChange(@NonNull final PeerConnection.IceConnectionState state) {
+        if (isFinished) return;
+        switch (state) {
+            case CONNECTED:
+            case COMPLETED:
+                removeAllCallbacks();
+                if (isRecovering) {
+                    Log.d("WebRTCModule", "WebRTCIceRecovery recovered[" + valueTag + "] - attempts=" + attempts);
+                    sendRecoveryEvent("recovered", 0);
+                }
+                isRecovering = false;
+                attempts = 0;
+                break;
+            case DISCONNECTED:
+                if (!isRecovering) {
+                    isRecovering = true;
+                    sendRecoveryEvent("disconnected", policy.disconnectedTimeoutMs);
+                }
+                handler.removeCallbacks(disconnectedTimeoutTask);
+                handler.postDelayed(disconnectedTimeoutTask, policy.disconnectedTimeoutMs);
+                break;
+            case FAILED:
+                isRecovering = true;
+                handler.removeCallbacks(disconnectedTimeoutTask);
+                scheduleRestart();
+                break;
+            case CLOSED:
+                isFinished = true;
+                removeAllCallbacks();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void scheduleRestart() {
+        if (isFinished || isRestartScheduled) return;
+        handler.removeCallbacks(restartTimeoutTask);
+        if (attempts >= policy.maxRestartAttempts) {
+            Log.d("WebRTCModule", "WebRTCIceRecovery give up[" + valueTag + "] - attempts=" + attempts);
+            isFinished = true;
+            removeAllCallbacks();
+            sendRecoveryEvent("failed", 0);
+            listener.onGiveUp();
+            return;
+        }
+        // 1 回目は initialBackoffMs、以降は倍々にして maxBackoffMs で頭打ちにする
+        final long delay = Math.min((long) policy.initialBackoffMs << Math.min(attempts, 30), policy.maxBackoffMs);
+        attempts++;
+        isRestartScheduled = true;
+        sendRecoveryEvent("restarting", delay);
+        handler.postDelayed(restartTask, delay);
+    }
+
+    private void restart() {
+        isRestartScheduled = false;
+        if (isFinished) return;
+        Log.d("WebRTCModule", "WebRTCIceRecovery restartIce()[" + valueTag + "] - attempt=" + attempts);
+        synchronized (lock) {
+            if (isFinished) return;
+            peerConnection.restartIce();
+            handler.postDelayed(restartTimeoutTask, policy.restartTimeoutMs);
+        }
+    }
+
+    private void removeAllCallbacks() {
+        handler.removeCallbacks(disconnectedTimeoutTask);
+        handler.removeCallbacks(restartTimeoutTask);
+        handler.removeCallbacks(restartTask);
+        isRestartScheduled = false;
+    }
+
+    /**
+     * @param state "disconnected", "restarting", "recovered", "failed" のいずれか
+     * @param delay "disconnected" の場合は restart を始めるまでの猶予、"restarting" の場合は restartIce() を呼び出すまでの待ち時間
+     */
+    private void sendRecoveryEvent(@NonNull final String state, final long delay) {
+        final WritableMap params = Arguments.createMap();
+        params.putString("valueTag", valueTag);
+        params.putString("state", state);
+        params.putInt("attempt", attempts);
+        params.putDouble("delay", delay);
+        sendDeviceEvent("peerConnectionIceRecovery", params);
+    }
+
+    /**
+     * Sends out an event to JavaScript.
+     * https://facebook.github.io/react-native/docs/native-modules-android#sending-events-to-javascript
+     */
+    private void sendDeviceEvent(@NonNull final String eventName,
+                                 @Nullable final WritableMap params) {
+        reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(eventName, params);
+    }
+
+}
@@ -0,0 +1,166 @@
+package jp.shiguredo.react.webrtckit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.os.Build;
+import android.os.SystemClock;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * PeerConnection の接続確立までの各段階 (マイルストーン) に到達した時刻を記録します。
+ * 時刻は単調増加のクロック (SystemClock.elapsedRealtimeNanos()) で、各マイルストーンは最初に到達した時刻のみを記録します。
+ * <p>
+ * 記録は ReactMethod のスレッド、signaling スレッド、描画スレッドから行われるため、
+ * マイルストーンごとの時刻は AtomicLongArray に保持し、ロックを取らずに記録します。
+ * 無効な場合は何も記録しません。
+ */
+final class WebRTCLatencyTracer {
+
+    static final int PEER_CONNECTION_INIT = 0;
+    static final int CREATE_OFFER_SUCCESS = 1;
+    static final int CREATE_ANSWER_SUCCESS = 2;
+    static final int SET_LOCAL_DESCRIPTION_SUCCESS = 3;
+    static final int SET_REMOTE_DESCRIPTION_SUCCESS = 4;
+    static final int FIRST_LOCAL_CANDIDATE = 5;
+    static final int ICE_CHECKING = 6;
+    static final int ICE_CONNECTED = 7;
+    /**
+     * onConnectionChange() で CONNECTED になった時点、すなわち DTLS の接続が完了した時点です。
+     */
+    static final int CONNECTION_CONNECTED = 8;
+    static final int FIRST_REMOTE_FRAME_RENDERED = 9;
+
+    /**
+     * インデックスは上記の定数に対応します。
+     */
+    private static final String[] MILESTONE_NAMES = {
+            "peerConnectionInit",
+            "createOfferSuccess",
+            "createAnswerSuccess",
+            "setLocalDescriptionSuccess",
+            "setRemoteDescriptionSuccess",
+            "firstLocalCandidate",
+            "iceChecking",
+            "iceConnected",
+            "connectionConnected",
+            "firstRemoteFrameRendered",
+    };
+
+    private volatile boolean isEnabled = false;
+    /**
+     * Key is valueTag of PeerConnection, Value is the timestamps in nanoseconds indexed by milestone. 0 means not reached.
+     */
+    private final ConcurrentHashMap<String, AtomicLongArray> traces = new ConcurrentHashMap<>();
+    /**
+     * Key is id of the remote track, Value is valueTag of the PeerConnection which receives it.
+     */
+    private final Map<String, String> trackOwners = new ConcurrentHashMap<>();
+
+    void setEnabled(final boolean isEnabled) {
+        this.isEnabled = isEnabled;
+    }
+
+    boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * マイルストーンに到達したことを記録します。すでに記録済みの場合は何もしません。
+     */
+    void record(@Nullable final String valueTag, final int milestone) {
+        if (!isEnabled || valueTag == null) return;
+        final long now = now();
+        AtomicLongArray trace = traces.get(valueTag);
+        if (trace == null) {
+            // XXX: Map.putIfAbsent() は API Level 24 以上のみのため、ConcurrentHashMap 自身のメソッドを使う
+            final AtomicLongArray newTrace = new AtomicLongArray(MILESTONE_NAMES.length);
+            final AtomicLongArray oldTrace = traces.putIfAbsent(valueTag, newTrace);
+            trace = (oldTrace != null) ? oldTrace : newTrace;
+        }
+        trace.compareAndSet(milestone, 0, now);
+    }
+
+    /**
+     * リモートのトラックを受信している PeerConnection を記録します。描画の記録に使います。
+     */
+    void associateTrack(@NonNull final String trackId, @NonNull final String valueTag) {
+        if (!isEnabled) return;
+        trackOwners.put(trackId, valueTag);
+    }
+
+    /**
+     * トラックを受信している PeerConnection について、マイルストーンに到達したことを記録します。
+     */
+    void recordTrack(@Nullable final String trackId, final int milestone) {
+        if (!isEnabled || trackId == null) return;
+        record(trackOwners.get(trackId), milestone);
+    }
+
+    /**
+     * 記録を [[マイルストーン名, peerConnectionInit からの経過時間 (ミリ秒)], ...] の形式で、到達したものだけを返します。
+     * peerConnectionInit が記録されていない場合は、最初に到達したマイルストーンからの経過時間を返します。
+     */
+    @NonNull
+    WritableArray traceJsonValue(@NonNull final String valueTag) {
+        final WritableArray json = Arguments.createArray();
+        final AtomicLongArray trace = traces.get(valueTag);
+        if (trace == null) return json;
+        long origin = trace.get(PEER_CONNECTION_INIT);
+        if (origin == 0) {
+            for (int i = 0; i < trace.length(); i++) {
+                final long timestamp = trace.get(i);
+                if (timestamp != 0 && (origin == 0 || timestamp < origin)) {
+                    origin = timestamp;
+                }
+            }
+        }
+        for (int i = 0; i < trace.length(); i++) {
+            final long timestamp = trace.get(i);
+            if (timestamp == 0) continue;
+            final WritableArray entry = Arguments.createArray();
+            entry.pushString(MILESTONE_NAMES[i]);
+            entry.pushDouble((timestamp - origin) / 1000000.0);
+            json.pushArray(entry);
+        }
+        return json;
+    }
+
+    /**
+     * PeerConnection の記録と、その PeerConnection が受信しているトラックの関連付けを破棄します。
+     * 無効な場合も、有効だった間に記録したものを破棄します。
+     */
+    void remove(@NonNull final String valueTag) {
+        traces.remove(valueTag);
+        // ConcurrentHashMap のイテレーターは、イテレーション中の削除を許容する
+        final Iterator<Map.Entry<String, String>> iterator = trackOwners.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (valueTag.equals(iterator.next().getValue())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    void clear() {
+        traces.clear();
+        trackOwners.clear();
+    }
+
+    /**
+     * 単調増加の現在時刻をナノ秒で返します。
+     * SystemClock.elapsedRealtimeNanos() は API Level 17 以上のみのため、それ未満ではミリ秒の精度で代用します。
+     */
+    private static long now() {
+        if (Build.VERSION.SDK_INT >= 17) {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+        return SystemClock.elapsedRealtime() * 1000000L;
+    }
+
+}
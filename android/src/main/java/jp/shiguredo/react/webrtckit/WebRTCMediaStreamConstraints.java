@@ -5,11 +5,11 @@ import androidx.annotation.NonNull;
 
 import com.facebook.react.bridge.ReadableMap;
 
+import static jp.shiguredo.react.webrtckit.Readables.doubles;
 import static jp.shiguredo.react.webrtckit.Readables.isTruthy;
-import static jp.shiguredo.react.webrtckit.Readables.jdouble;
-import static jp.shiguredo.react.webrtckit.Readables.jint;
 import static jp.shiguredo.react.webrtckit.Readables.map;
 import static jp.shiguredo.react.webrtckit.Readables.string;
+import static jp.shiguredo.react.webrtckit.Readables.type;
 
 final class WebRTCMediaStreamConstraints {
 
@@ -31,17 +31,24 @@ final class WebRTCMediaStreamConstraints {
 
     static class Video {
 
-        @Nullable
-        final String facingMode;
-        final int width;
-        final int height;
-        final int frameRate;
-        final double aspectRatio;
-
-        // TODO: sourceId のサポートをどうするか考える。
-        //       iOS側はAVCaptureDevice.uniqueID を sourceId として指定させているように見えるが、実装上で使っているようには見えない。
-        //       そもそもAndroid側は deviceName でデバイスを管理するので sourceId という名前が良いとも思えない (sourceNameだな)
-        //       とはいえiOS側と名前を合わせないと機能しない・・・とりま未実装で放置しておく
+        /**
+         * 使用するカメラの位置。W3C の仕様通り、文字列のみの場合は ideal として扱います。
+         */
+        @NonNull
+        final StringConstraint facingMode;
+        /**
+         * 使用するカメラのデバイス ID。enumerateDevices() で取得できる deviceId を指定します。
+         */
+        @NonNull
+        final StringConstraint deviceId;
+        @NonNull
+        final Range width;
+        @NonNull
+        final Range height;
+        @NonNull
+        final Range frameRate;
+        @NonNull
+        final Range aspectRatio;
 
         @Nullable
         static Video fromJson(@NonNull final ReadableMap json) {
@@ -54,26 +61,136 @@ final class WebRTCMediaStreamConstraints {
         }
 
         private Video(@NonNull final ReadableMap videoJson) {
-            final String facingModeValue = string(videoJson, "facingMode");
-            if (facingModeValue != null) {
-                switch (facingModeValue) {
-                    case "user":
-                        this.facingMode = facingModeValue;
-                        break;
-                    case "environment":
-                        this.facingMode = facingModeValue;
-                        break;
-                    default:
-                        this.facingMode = null;
-                        break;
-                }
-            } else {
-                this.facingMode = null;
+            facingMode = StringConstraint.fromJson(videoJson, "facingMode", false);
+            deviceId = StringConstraint.fromJson(videoJson, "deviceId", false);
+            width = Range.fromJson(videoJson, "width");
+            height = Range.fromJson(videoJson, "height");
+            frameRate = Range.fromJson(videoJson, "frameRate");
+            aspectRatio = Range.fromJson(videoJson, "aspectRatio");
+        }
+    }
+
+    /**
+     * 数値の制約です。数値のみが指定された場合は ideal として扱います。
+     * min, max, exact は必須の条件で、ideal は満たせるものの中から最も近いものを選ぶための条件です。
+     */
+    static final class Range {
+        static final Range NONE = new Range(null, null, null, null);
+
+        @Nullable
+        final Double min;
+        @Nullable
+        final Double max;
+        @Nullable
+        final Double exact;
+        @Nullable
+        final Double ideal;
+
+        Range(@Nullable final Double min,
+              @Nullable final Double max,
+              @Nullable final Double exact,
+              @Nullable final Double ideal) {
+            this.min = min;
+            this.max = max;
+            this.exact = exact;
+            this.ideal = ideal;
+        }
+
+        @NonNull
+        static Range fromJson(@NonNull final ReadableMap json, @NonNull final String key) {
+            switch (type(json, key)) {
+                case Number:
+                    return new Range(null, null, null, json.getDouble(key));
+                case Map:
+                    final ReadableMap rangeJson = json.getMap(key);
+                    return new Range(doubles(rangeJson, "min"),
+                            doubles(rangeJson, "max"),
+                            doubles(rangeJson, "exact"),
+                            doubles(rangeJson, "ideal"));
+                default:
+                    return NONE;
             }
-            width = jint(videoJson, "width", -1);
-            height = jint(videoJson, "width", -1);
-            frameRate = jint(videoJson, "frameRate", -1);
-            aspectRatio = jdouble(videoJson, "aspectRatio", -1);
+        }
+
+        /**
+         * min, max, exact をすべて満たす場合に true を返します。
+         */
+        boolean satisfies(final double value, final double tolerance) {
+            if (exact != null && Math.abs(value - exact) > tolerance) return false;
+            if (min != null && value < min - tolerance) return false;
+            if (max != null && value > max + tolerance) return false;
+            return true;
+        }
+
+        /**
+         * ideal との距離を 0 から 1 の値で返します。ideal が指定されていない場合は 0 です。
+         */
+        double distance(final double value) {
+            if (ideal == null) return 0;
+            final double denominator = Math.max(Math.abs(value), Math.abs(ideal));
+            return (denominator == 0) ? 0 : Math.abs(value - ideal) / denominator;
+        }
+
+        /**
+         * ideal が指定されていない場合に、ideal を def にした Range を返します。
+         */
+        @NonNull
+        Range withDefaultIdeal(final double def) {
+            if (ideal != null) return this;
+            return new Range(min, max, exact, def);
+        }
+
+        /**
+         * exact、ideal の順に指定されている値を返します。どちらも指定されていない場合は def を返します。
+         */
+        double value(final double def) {
+            if (exact != null) return exact;
+            if (ideal != null) return ideal;
+            return def;
+        }
+    }
+
+    /**
+     * 文字列の制約です。exact は必須の条件で、ideal は一致するものを優先するための条件です。
+     */
+    static final class StringConstraint {
+        static final StringConstraint NONE = new StringConstraint(null, null);
+
+        @Nullable
+        final String exact;
+        @Nullable
+        final String ideal;
+
+        StringConstraint(@Nullable final String exact, @Nullable final String ideal) {
+            this.exact = exact;
+            this.ideal = ideal;
+        }
+
+        /**
+         * @param isBareValueExact 文字列のみが指定された場合に exact として扱うなら true、ideal として扱うなら false
+         */
+        @NonNull
+        static StringConstraint fromJson(@NonNull final ReadableMap json,
+                                         @NonNull final String key,
+                                         final boolean isBareValueExact) {
+            switch (type(json, key)) {
+                case String:
+                    final String value = json.getString(key);
+                    return isBareValueExact ? new StringConstraint(value, null) : new StringConstraint(null, value);
+                case Map:
+                    final ReadableMap constraintJson = json.getMap(key);
+                    return new StringConstraint(string(constraintJson, "exact"), string(constraintJson, "ideal"));
+                default:
+                    return NONE;
+            }
+        }
+
+        boolean satisfies(@Nullable final String value) {
+            return exact == null || exact.equals(value);
+        }
+
+        double distance(@Nullable final String value) {
+            return (ideal == null || ideal.equals(value)) ? 0 : 1;
         }
     }
 
@@ -3,6 +3,9 @@ package jp.shiguredo.react.webrtckit;
 import androidx.annotation.Nullable;
 import androidx.annotation.NonNull;
 
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Base64;
 import android.util.Log;
 import android.util.Pair;
@@ -17,38 +20,44 @@ import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.module.annotations.ReactModule;
+import com.facebook.react.modules.blob.BlobModule;
 
 import org.webrtc.AudioSource;
 import org.webrtc.AudioTrack;
-import org.webrtc.DefaultVideoDecoderFactory;
-import org.webrtc.DefaultVideoEncoderFactory;
 import org.webrtc.EglBase;
-import org.webrtc.Logging;
+import org.webrtc.IceCandidate;
 import org.webrtc.MediaConstraints;
 import org.webrtc.MediaStream;
 import org.webrtc.MediaStreamTrack;
 import org.webrtc.Metrics;
 import org.webrtc.PeerConnection;
-import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RTCStatsCollectorCallback;
+import org.webrtc.RTCStatsReport;
 import org.webrtc.RtpParameters;
 import org.webrtc.RtpSender;
 import org.webrtc.RtpTransceiver;
 import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
-import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoSource;
 import org.webrtc.VideoTrack;
 import org.webrtc.DataChannel;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import static jp.shiguredo.react.webrtckit.WebRTCConverter.applyRtpParametersPatch;
+import static jp.shiguredo.react.webrtckit.WebRTCConverter.codecPreferences;
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.dataChannelBuffer;
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.dataChannelInit;
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.dataChannelJsonValue;
@@ -56,30 +65,84 @@ import static jp.shiguredo.react.webrtckit.WebRTCConverter.iceCandidate;
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.mediaConstraints;
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.mediaStreamTrackJsonValue;
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.rtcConfiguration;
+import static jp.shiguredo.react.webrtckit.WebRTCConverter.rtcStatsReportJsonValue;
+import static jp.shiguredo.react.webrtckit.WebRTCConverter.rtpParametersJsonValue;
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.rtpSenderJsonValue;
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.rtpTransceiverDirection;
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.rtpTransceiverDirectionStringValue;
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.sessionDescription;
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.toStringList;
+import static jp.shiguredo.react.webrtckit.Readables.jdouble;
+import static jp.shiguredo.react.webrtckit.Readables.jint;
 
 @ReactModule(name = "WebRTCModule")
 public class WebRTCModule extends ReactContextBaseJavaModule {
 
+    private static final int DEFAULT_ICE_CANDIDATE_FLUSH_INTERVAL_MS = 50;
+    /**
+     * 破棄時に、ファイル転送の中止が完了するのを待つ最大の時間です。
+     */
+    private static final int FILE_TRANSFER_CANCEL_TIMEOUT_MS = 1000;
+
     @NonNull
     private final ReactApplicationContext reactContext;
+    /**
+     * PeerConnectionFactory などの生成に時間のかかるオブジェクトです。
+     * initialize() または prepare() でバックグラウンドのスレッドで生成を開始し、生成が完了したら engineLatch を解放します。
+     * 生成が完了する前に getEngine() を呼び出すと、完了するまで待ちます。
+     */
+    @Nullable
+    private volatile WebRTCEngine engine = null;
+    @Nullable
+    private volatile RuntimeException engineError = null;
     @NonNull
-    private final EglBase eglBase;
+    private final CountDownLatch engineLatch = new CountDownLatch(1);
+    /**
+     * engine の生成を開始したかどうか。this で保護します。
+     */
+    private boolean isEngineLoadingStarted = false;
+    /**
+     * engine の生成完了を待っている prepare() の Promise です。this で保護します。
+     */
     @NonNull
-    private final PeerConnectionFactory peerConnectionFactory;
+    private final List<Promise> preparePromises = new ArrayList<>();
+    /**
+     * engine の生成完了後にメインスレッドで実行する処理です。this で保護します。
+     */
+    private final List<Runnable> engineReadyTasks = new ArrayList<>();
     @NonNull
-    private final WebRTCCamera cameraCapturer;
+    final WebRTCRepository repository = new WebRTCRepository();
     /**
-     * XXX: Maybe we should move the surfaceTextureHelper to the WebRTCCamera so that the camera module handles all capturing tasks instead of this module
+     * Key is valueTag of PeerConnection, Value is its stats sampler.
      */
     @NonNull
-    private final SurfaceTextureHelper surfaceTextureHelper;
+    private final Map<String, WebRTCStatsSampler> statsSamplers = new HashMap<>();
+    /**
+     * 統計情報のサンプリングやイベントの集約など、タイマー処理を行うためのスレッド。
+     * 最初に必要になった時点で生成します。
+     */
+    @Nullable
+    private HandlerThread workerThread = null;
+    @Nullable
+    private Handler workerHandler = null;
+    /**
+     * DataChannel のファイル転送で、ファイルの読み書きを行うためのスレッド。
+     * 大きなファイルの読み書きでワーカースレッドのタイマー処理が遅れないよう、専用のスレッドにしています。
+     */
+    @Nullable
+    private HandlerThread fileIoThread = null;
+    @Nullable
+    private Handler fileIoHandler = null;
+    /**
+     * true の場合、sender / receiver / transceiver のイベントと peerConnectionAddTrack() の結果に RtpParameters を含めません。
+     * RtpParameters が必要な場合は rtpParametersGet() で取得します。
+     */
+    volatile boolean isLazyRtpParametersEnabled = false;
+    /**
+     * 接続確立までの各段階の時刻を記録します。enableLatencyTracer() で有効にした場合のみ記録します。
+     */
     @NonNull
-    final WebRTCRepository repository = new WebRTCRepository();
+    final WebRTCLatencyTracer latencyTracer = new WebRTCLatencyTracer();
 
     @NonNull public ReactApplicationContext getReactContext() {
         return reactContext;
@@ -87,31 +150,8 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     public WebRTCModule(@NonNull final ReactApplicationContext reactContext) {
         super(reactContext);
-
-        // PeerConnectionFactory自体を最初に初期化する必要がある
-        final PeerConnectionFactory.InitializationOptions pcfInitializationOptions =
-                PeerConnectionFactory.InitializationOptions.builder(reactContext)
-                        .setEnableInternalTracer(false)
-                        .setFieldTrials("")
-                        .createInitializationOptions();
-        PeerConnectionFactory.initialize(pcfInitializationOptions);
-
-        // WebRTCのロギングを有効化する
-        // XXX: 不要になったら削除するかも、またはデバッグビルドでのみ有効にする必要があるかも
-        Logging.enableLogToDebugOutput(Logging.Severity.LS_INFO);
-
-        // 各フィールドを初期化
-        // XXX: DefaultVideoEncoderFactory - VP8 encoder / H264 の利用可否を適切に判断する
-        //      現在のところは決め打ちで両方有効にしているが、ハードウェアによっては利用できない場合がある
-        //      RN経由でユーザーから調整可能にしてもよいが、可能であればここで利用可否を判断できるのが望ましい
+        // PeerConnectionFactory などの生成は時間がかかり、アプリの起動を遅らせるため、ここでは行わない
         this.reactContext = reactContext;
-        this.eglBase = EglBase.create();
-        this.peerConnectionFactory = PeerConnectionFactory.builder()
-                .setVideoEncoderFactory(new DefaultVideoEncoderFactory(getEglContext(), true, true))
-                .setVideoDecoderFactory(new DefaultVideoDecoderFactory(getEglContext()))
-                .createPeerConnectionFactory();
-        this.cameraCapturer = new WebRTCCamera();
-        this.surfaceTextureHelper = SurfaceTextureHelper.create("WebRTCCameraCaptureThread", getEglContext());
     }
 
 
@@ -124,10 +164,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @Override
     public void initialize() {
-        // Do nothing
         // Android版のReact Nativeはリロード時などにNative Moduleインスタンスを使い回さず新たに作り直すため、
         // 通常のコンストラクタで問題なく動作する。
+        // ここではバックグラウンドで engine の生成を開始するだけで、完了は待たない
         Log.d(getName(), "initialize()");
+        startLoadingEngine();
     }
 
     @Override
@@ -139,7 +180,25 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
          * finishLoading()は古いインスタンスではなく新しいインスタンスで呼び出されてしまい、うまくいかない。
          */
         Log.d(getName(), "onCatalystInstanceDestroy()");
-        cameraCapturer.stopCapture();
+        final WebRTCEngine engine = getEngineIfLoadingStarted();
+        if (engine != null) {
+            engine.cameraCapturer.stopCapture();
+        }
+
+        // 実行中のファイル転送を中止し、Promise を reject してファイルを閉じる
+        // 中止はファイル I/O のスレッドで行われるため、スレッドを止める前と DataChannel を破棄する前に完了を待つ
+        cancelAllFileTransfers();
+
+        // サンプラーが破棄済みの PeerConnection の getStats() を呼び出さないよう、dispose() より先に止める
+        for (final WebRTCStatsSampler sampler : statsSamplers.values()) {
+            sampler.stop();
+        }
+        statsSamplers.clear();
+
+        // 破棄済みの PeerConnection の restartIce() を呼び出さないよう、dispose() より先に ICE の復旧を止める
+        for (final WebRTCPeerConnectionObserver observer : repository.allPeerConnectionObservers()) {
+            observer.setIceRecoveryPolicy(null);
+        }
 
         // PeerConnection.dispose()を実施するとそのPeerConnectionが内部で持っているすべてのオブジェクトを破棄するので、
         // 同時にSender, Receiver, Streamなども適切に破棄される。
@@ -147,10 +206,25 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
             peerConnection.dispose();
         }
         repository.clear();
+        latencyTracer.clear();
+
+        synchronized (this) {
+            if (workerThread != null) {
+                // quitSafely() は API Level 18 以上のみのため quit() を使う。破棄時なので未処理のタスクは捨ててよい
+                workerThread.quit();
+                workerThread = null;
+                workerHandler = null;
+            }
+            if (fileIoThread != null) {
+                fileIoThread.quit();
+                fileIoThread = null;
+                fileIoHandler = null;
+            }
+        }
 
-        peerConnectionFactory.dispose();
-        surfaceTextureHelper.dispose();
-        eglBase.release();
+        if (engine != null) {
+            engine.dispose();
+        }
     }
 
     //endregion
@@ -169,6 +243,35 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         Log.d(getName(), "finishLoading()");
     }
 
+    /**
+     * prepare(): Promise<void>
+     * PeerConnectionFactory などの初期化を開始し、完了したら resolve します。
+     * 通話画面を開く前に呼び出しておくと、最初の getUserMedia() や peerConnectionInit() の待ち時間を短縮できます。
+     */
+    @ReactMethod
+    public void prepare(@NonNull final Promise promise) {
+        Log.d(getName(), "prepare()");
+        synchronized (this) {
+            if (engine == null && engineError == null) {
+                preparePromises.add(promise);
+                startLoadingEngine();
+                return;
+            }
+        }
+        resolvePrepare(promise);
+    }
+
+    /**
+     * getCodecCapabilities(): Promise<Object>
+     * 端末で利用可能な映像コーデックを、SDP での優先順位の順に返します。
+     * 各コーデックの implementation はハードウェア実装の場合 "hardware"、ソフトウェア実装のみの場合 "software" です。
+     */
+    @ReactMethod
+    public void getCodecCapabilities(@NonNull final Promise promise) {
+        Log.d(getName(), "getCodecCapabilities()");
+        promise.resolve(getEngine().codecCapabilities.jsonValue());
+    }
+
     @ReactMethod
     public void enableMetrics() {
         Log.d(getName(), "enableMetrics()");
@@ -225,61 +328,60 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         final WebRTCMediaStreamConstraints constraints = new WebRTCMediaStreamConstraints(constraintsJson);
         final boolean isVideoEnabled = (constraints.video != null);
         final boolean isAudioEnabled = (constraints.audio != null);
+        final WebRTCEngine engine = getEngine();
 
+        // 映像が不要の場合はカメラに一切触れず、音声のトラックのみを生成する
+        // AudioSource はカメラとは独立しているので、カメラを起動しなくてもマイクは使える
         final WebRTCCameraDeviceCandidate deviceCandidate;
-        final VideoCapturer videoCapturer;
         if (isVideoEnabled) {
-            // カメラとマイクを起動する
-            // libwebrtc でカメラを起動すると自動的にマイクも起動される
-            // そのため、音声のみ必要な場合でもカメラを起動する必要がある
-            deviceCandidate = cameraCapturer.getSuitableDeviceCandidate(constraints.video);
+            try {
+                deviceCandidate = engine.cameraCapturer.getSuitableDeviceCandidate(constraints.video);
+            } catch (final WebRTCVideoConstraintSolver.OverconstrainedException e) {
+                promise.reject("OverconstrainedError", e.getMessage());
+                return;
+            }
             if (deviceCandidate == null) {
-                promise.reject("NotFoundError", "No suitable camera device is found for the given facing mode.");
+                promise.reject("NotFoundError", "No camera device is found.");
                 return;
             }
-            videoCapturer = cameraCapturer.createCapturer(deviceCandidate);
         } else {
-            // 映像が不要の場合でも、マイクを起動するためにカメラを起動しておく
-            // その場合は後々ストリームから映像トラックを外す
             deviceCandidate = null;
-            videoCapturer = cameraCapturer.createCapturerFromAllDevices();
         }
 
-        // カメラ用のトラックを持つストリームを生成する
+        // トラックを持つストリームを生成する
         // このストリームを管理する必要はなく、
         // ストリーム ID のみ getUserMedia に渡せればよい
-        final MediaStream mediaStream = peerConnectionFactory.createLocalMediaStream(createNewValueTag());
-
-        // 映像と音声のトラックをストリームに追加する
-        final VideoSource videoSource = peerConnectionFactory.createVideoSource(videoCapturer.isScreencast());
-        videoCapturer.initialize(surfaceTextureHelper, reactContext, videoSource.getCapturerObserver());
-        final VideoTrack videoTrack = peerConnectionFactory.createVideoTrack(createNewValueTag(), videoSource);
-        final AudioSource audioSource = peerConnectionFactory.createAudioSource(new MediaConstraints());
-        final AudioTrack audioTrack = peerConnectionFactory.createAudioTrack(createNewValueTag(), audioSource);
-
-        repository.tracks.add(videoTrack.id(), createNewValueTag(), videoTrack);
-        repository.tracks.add(audioTrack.id(), createNewValueTag(), audioTrack);
-        mediaStream.addTrack(videoTrack);
-        mediaStream.addTrack(audioTrack);
-
-        // constraints の指定に従ってトラックの可否を決める
-        videoTrack.setEnabled(isVideoEnabled);
-        audioTrack.setEnabled(isAudioEnabled);
+        final MediaStream mediaStream = engine.peerConnectionFactory.createLocalMediaStream(createNewId());
+        final WritableArray tracks = Arguments.createArray();
 
-        // アスペクト比の設定と、カメラデバイスのキャプチャ開始
-        // XXX: キャプチャ開始はlocal stream追加まで待ったほうがいいかもしれないけど、ここではiOS版に揃えて即開始します。ダメそうなら待つように実装を修正する。
         if (isVideoEnabled) {
-            repository.setVideoTrackAspectRatio(videoTrack, constraints.video.aspectRatio);
-            cameraCapturer.stopCapture();
-            cameraCapturer.startCapture(videoSource, videoCapturer, deviceCandidate, constraints.video);
+            final VideoCapturer videoCapturer = engine.cameraCapturer.createCapturer(deviceCandidate);
+            final VideoSource videoSource = engine.peerConnectionFactory.createVideoSource(videoCapturer.isScreencast());
+            videoCapturer.initialize(engine.surfaceTextureHelper, reactContext, videoSource.getCapturerObserver());
+            final VideoTrack videoTrack = engine.peerConnectionFactory.createVideoTrack(createNewId(), videoSource);
+            repository.tracks.add(videoTrack.id(), videoTrack);
+            mediaStream.addTrack(videoTrack);
+
+            // アスペクト比の設定と、カメラデバイスのキャプチャ開始
+            // XXX: キャプチャ開始はlocal stream追加まで待ったほうがいいかもしれないけど、ここではiOS版に揃えて即開始します。ダメそうなら待つように実装を修正する。
+            repository.setVideoSourceForTrack(videoTrack, videoSource);
+            stopCapture(engine);
+            engine.cameraCapturer.startCapture(videoSource, videoCapturer, deviceCandidate);
+            engine.cameraCapturer.setOutputAspectRatio(videoSource, constraints.video.aspectRatio.value(-1));
+            tracks.pushMap(mediaStreamTrackJsonValue(videoTrack, repository));
         }
 
+        // 音声のトラックは従来通り常に生成し、constraints の指定に従って可否を決める
+        final AudioSource audioSource = engine.peerConnectionFactory.createAudioSource(new MediaConstraints());
+        final AudioTrack audioTrack = engine.peerConnectionFactory.createAudioTrack(createNewId(), audioSource);
+        repository.tracks.add(audioTrack.id(), audioTrack);
+        mediaStream.addTrack(audioTrack);
+        audioTrack.setEnabled(isAudioEnabled);
+        tracks.pushMap(mediaStreamTrackJsonValue(audioTrack, repository));
+
         // JS に処理を戻す
         final WritableMap result = Arguments.createMap();
         result.putString("streamId", mediaStream.getId());
-        final WritableArray tracks = Arguments.createArray();
-        tracks.pushMap(mediaStreamTrackJsonValue(videoTrack, repository));
-        tracks.pushMap(mediaStreamTrackJsonValue(audioTrack, repository));
         result.putArray("tracks", tracks);
         promise.resolve(result);
     }
@@ -287,7 +389,30 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void stopUserMedia() {
         Log.d(getName(), "stopUserMedia()");
-        cameraCapturer.stopCapture();
+        final WebRTCEngine engine = this.engine;
+        if (engine != null) {
+            stopCapture(engine);
+        }
+    }
+
+    /**
+     * カメラのキャプチャを停止し、破棄した VideoSource とトラックの対応を削除します。
+     */
+    private void stopCapture(@NonNull final WebRTCEngine engine) {
+        final VideoSource stoppedSource = engine.cameraCapturer.stopCapture();
+        if (stoppedSource != null) {
+            repository.removeVideoSource(stoppedSource);
+        }
+    }
+
+    /**
+     * enumerateDevices(): Promise<Array<Object>>
+     * カメラデバイスの一覧を返します。形式は WebRTCCameraCatalog.jsonValue() を参照してください。
+     */
+    @ReactMethod
+    public void enumerateDevices(@NonNull Promise promise) {
+        Log.d(getName(), "enumerateDevices()");
+        promise.resolve(getEngine().cameraCapturer.getCatalog().jsonValue());
     }
 
     /**
@@ -303,14 +428,76 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     /**
      * trackSetAspectRatio(valueTag: ValueTag, aspectRatio: number)
+     * getUserMedia() で生成した映像トラックのみ有効です。キャプチャの出力をアスペクト比に合わせて切り抜きます。
      */
     @ReactMethod
     public void trackSetAspectRatio(double aspectRatio, @NonNull String valueTag) {
         Log.d(getName(), "trackSetAspectRatio()");
+        final VideoSource videoSource = getLocalVideoSourceByTrackValueTag(valueTag);
+        final WebRTCEngine engine = this.engine;
+        if (videoSource == null || engine == null) return;
+        engine.cameraCapturer.setOutputAspectRatio(videoSource, aspectRatio);
+    }
+
+    /**
+     * trackAdaptOutputFormat(valueTag: ValueTag, width: number, height: number, fps: number)
+     * getUserMedia() で生成した映像トラックのみ有効です。キャプチャの出力を指定された大きさに切り抜いて縮小し、フレームレートを落とします。
+     * 0 以下の値はキャプチャの設定をそのまま使います。
+     */
+    @ReactMethod
+    public void trackAdaptOutputFormat(int width, int height, int fps, @NonNull String valueTag) {
+        Log.d(getName(), "trackAdaptOutputFormat() - " + width + "x" + height + "@" + fps);
+        final VideoSource videoSource = getLocalVideoSourceByTrackValueTag(valueTag);
+        final WebRTCEngine engine = this.engine;
+        if (videoSource == null || engine == null) return;
+        engine.cameraCapturer.setOutputFormat(videoSource, width, height, fps);
+    }
+
+    /**
+     * trackSwitchCamera(valueTag: ValueTag, facingMode: RTCFacingMode): Promise<Object>
+     * getUserMedia() で生成した映像トラックのカメラを、トラックを作り直さずに切り替えます。
+     * 同じトラックを使い続けるので、sender の差し替えや再ネゴシエーションは不要です。
+     * 切り替えが完了すると {facingMode, deviceId} で解決します。
+     */
+    @ReactMethod
+    public void trackSwitchCamera(@NonNull String facingMode, @NonNull String valueTag, @NonNull Promise promise) {
+        Log.d(getName(), "trackSwitchCamera() - facingMode=" + facingMode);
+        final VideoSource videoSource = getLocalVideoSourceByTrackValueTag(valueTag);
+        final WebRTCEngine engine = this.engine;
+        if (videoSource == null || engine == null) {
+            promise.reject("NotFoundError", "track is not found");
+            return;
+        }
+        final boolean isStarted;
+        try {
+            isStarted = engine.cameraCapturer.switchCamera(videoSource, facingMode, new WebRTCCamera.SwitchListener() {
+                @Override
+                public void onSwitched(@NonNull String deviceName) {
+                    final WritableMap result = Arguments.createMap();
+                    result.putString("facingMode", facingMode);
+                    result.putString("deviceId", deviceName);
+                    promise.resolve(result);
+                }
+
+                @Override
+                public void onError(@NonNull String message) {
+                    promise.reject("CameraSwitchError", message);
+                }
+            });
+        } catch (final WebRTCVideoConstraintSolver.OverconstrainedException e) {
+            promise.reject("OverconstrainedError", e.getMessage());
+            return;
+        }
+        if (!isStarted) {
+            promise.reject("InvalidStateError", "capture of the track is not running");
+        }
+    }
+
+    @Nullable
+    private VideoSource getLocalVideoSourceByTrackValueTag(@NonNull final String valueTag) {
         final MediaStreamTrack track = repository.tracks.getByValueTag(valueTag);
-        if (!(track instanceof VideoTrack)) return;
-        final VideoTrack videoTrack = (VideoTrack) track;
-        repository.setVideoTrackAspectRatio(videoTrack, aspectRatio);
+        if (!(track instanceof VideoTrack)) return null;
+        return repository.getVideoSourceByTrack((VideoTrack) track);
     }
 
     /**
@@ -376,6 +563,66 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         promise.resolve(null);
     }
 
+    /**
+     * transceiverSetCodecPreferences(valueTag: ValueTag, codecs: Array<RTCRtpCodecCapability>)
+     * 以降の createOffer() / createAnswer() で生成される SDP に、指定した順序でコーデックの優先順位を反映します。
+     * 空の配列を指定すると優先順位の設定を解除します。
+     */
+    @ReactMethod
+    public void transceiverSetCodecPreferences(@NonNull ReadableArray codecsJson, @NonNull String valueTag, @NonNull Promise promise) {
+        Log.d(getName(), "transceiverSetCodecPreferences()");
+        final RtpTransceiver transceiver = repository.transceivers.getByValueTag(valueTag);
+        if (transceiver == null) {
+            promise.reject("NotFoundError", "transceiver is not found");
+            return;
+        }
+        try {
+            repository.setCodecPreferences(transceiver, codecPreferences(codecsJson));
+        } catch (final IllegalArgumentException e) {
+            promise.reject("InvalidModificationError", e);
+            return;
+        }
+        promise.resolve(null);
+    }
+
+    /**
+     * senderSetCodecPreferences(codecs: Array<RTCRtpCodecCapability>, valueTag: ValueTag)
+     * sender のトランシーバーに transceiverSetCodecPreferences() と同じ設定をします。
+     * addTrack() で生成したトランシーバーは onTrack() まで valueTag を持たないため、最初の offer の前に設定する場合に使います。
+     */
+    @ReactMethod
+    public void senderSetCodecPreferences(@NonNull ReadableArray codecsJson, @NonNull String valueTag, @NonNull Promise promise) {
+        Log.d(getName(), "senderSetCodecPreferences()");
+        final RtpSender sender = repository.senders.getByValueTag(valueTag);
+        final String peerConnectionValueTag = repository.getOwnerPeerConnectionValueTag(valueTag);
+        if (sender == null || peerConnectionValueTag == null) {
+            promise.reject("NotFoundError", "sender is not found");
+            return;
+        }
+        try {
+            repository.setCodecPreferences(peerConnectionValueTag, sender, codecPreferences(codecsJson));
+        } catch (final IllegalArgumentException e) {
+            promise.reject("InvalidModificationError", e);
+            return;
+        }
+        promise.resolve(null);
+    }
+
+    /**
+     * getRtpSenderCapabilities(kind: string): Promise<RTCRtpCapabilities>
+     * XXX: libwebrtc M88 の Android 版には PeerConnectionFactory.getRtpSenderCapabilities() がないため、
+     *      映像は WebRTCCodecCapabilities の調査結果から生成しています。音声には対応していません。
+     */
+    @ReactMethod
+    public void getRtpSenderCapabilities(@NonNull String kind, @NonNull Promise promise) {
+        Log.d(getName(), "getRtpSenderCapabilities() - kind=" + kind);
+        if (!"video".equals(kind)) {
+            promise.reject("NotSupportedError", kind + " capabilities are not supported");
+            return;
+        }
+        promise.resolve(getEngine().codecCapabilities.rtpCapabilitiesJsonValue());
+    }
+
     /**
      * peerConnectionInit(valueTag: ValueTag, configuration: RTCConfiguration, constraints: RTCMediaConstraints)
      * TODO: MediaConstraintsがdeprecated扱いになっているがどうするべきか？とりあえず現状はconstraints引数を無視するようにしているが・・・
@@ -383,9 +630,10 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void peerConnectionInit(@NonNull ReadableMap configurationJson, @Nullable ReadableMap constraintsJson, @NonNull String valueTag) {
         Log.d(getName(), "peerConnectionInit() - valueTag=" + valueTag);
+        latencyTracer.record(valueTag, WebRTCLatencyTracer.PEER_CONNECTION_INIT);
         final PeerConnection.RTCConfiguration configuration = rtcConfiguration(configurationJson);
         final WebRTCPeerConnectionObserver observer = new WebRTCPeerConnectionObserver(reactContext);
-        final PeerConnection peerConnection = peerConnectionFactory.createPeerConnection(configuration, observer);
+        final PeerConnection peerConnection = getEngine().peerConnectionFactory.createPeerConnection(configuration, observer);
         if (peerConnection == null) {
             throw new IllegalStateException("createPeerConnection failed");
         }
@@ -395,7 +643,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         // libwebrtc側できちんと破棄されればJava側もそのうち適切にGCされて消えることがわかったので、
         // ひとまずこの状態で大丈夫
         observer.peerConnectionPair = peerConnectionPair;
-        repository.addPeerConnection(peerConnectionPair);
+        repository.addPeerConnection(peerConnectionPair, observer);
     }
 
     /**
@@ -435,10 +683,10 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
             promise.reject("PeerConnectionError", "cannot add the track");
             return;
         }
-        repository.senders.add(sender.id(), createNewValueTag(), sender);
+        repository.setRtpParametersOwner(repository.senders.add(sender.id(), sender), valueTag);
         repository.setStreamIdsForSender(sender, streamIdsList);
 
-        promise.resolve(rtpSenderJsonValue(sender, repository));
+        promise.resolve(rtpSenderJsonValue(sender, repository, !isLazyRtpParametersEnabled));
     }
 
     /**
@@ -462,6 +710,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         }
 
         repository.senders.removeById(sender.id());
+        repository.invalidateRtpParameters(senderValueTag);
         if (peerConnection.removeTrack(sender)) {
             promise.resolve(null);
         } else {
@@ -487,8 +736,10 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         final SdpObserver observer = new SdpObserver() {
             @Override
             public void onCreateSuccess(SessionDescription sessionDescription) {
+                latencyTracer.record(valueTag, WebRTCLatencyTracer.CREATE_OFFER_SUCCESS);
                 final WritableMap result = Arguments.createMap();
-                result.putString("sdp", sessionDescription.description);
+                result.putString("sdp", WebRTCCodecPreferences.apply(sessionDescription.description,
+                        repository.getCodecPreferencesByMid(valueTag, peerConnection, sessionDescription.description)));
                 result.putString("type", sessionDescription.type.canonicalForm());
                 promise.resolve(result);
             }
@@ -529,8 +780,10 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         final SdpObserver observer = new SdpObserver() {
             @Override
             public void onCreateSuccess(SessionDescription sessionDescription) {
+                latencyTracer.record(valueTag, WebRTCLatencyTracer.CREATE_ANSWER_SUCCESS);
                 final WritableMap result = Arguments.createMap();
-                result.putString("sdp", sessionDescription.description);
+                result.putString("sdp", WebRTCCodecPreferences.apply(sessionDescription.description,
+                        repository.getCodecPreferencesByMid(valueTag, peerConnection, sessionDescription.description)));
                 result.putString("type", sessionDescription.type.canonicalForm());
                 promise.resolve(result);
             }
@@ -572,6 +825,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
             @Override
             public void onSetSuccess() {
+                latencyTracer.record(valueTag, WebRTCLatencyTracer.SET_LOCAL_DESCRIPTION_SUCCESS);
                 promise.resolve(null);
             }
 
@@ -607,6 +861,16 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
             @Override
             public void onSetSuccess() {
+                latencyTracer.record(valueTag, WebRTCLatencyTracer.SET_REMOTE_DESCRIPTION_SUCCESS);
+                // リモートの SDP の設定前に受け取って保留していた ICE candidate を追加する
+                final WebRTCPeerConnectionObserver peerConnectionObserver = repository.getPeerConnectionObserverByValueTag(valueTag);
+                if (peerConnectionObserver != null) {
+                    for (final IceCandidate candidate : peerConnectionObserver.onRemoteDescriptionSet()) {
+                        if (!peerConnection.addIceCandidate(candidate)) {
+                            Log.w(getName(), "peerConnectionSetRemoteDescription() - failed to add the queued candidate");
+                        }
+                    }
+                }
                 promise.resolve(null);
             }
 
@@ -638,6 +902,96 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         promise.resolve(null);
     }
 
+    /**
+     * peerConnectionAddICECandidates(valueTag: ValueTag, candidates: Array<RTCIceCandidate>): Promise<Object>
+     * 複数の ICE candidate を 1 回の呼び出しで追加します。
+     * リモートの SDP がまだ設定されていない場合はキューに保留し、設定された時点で追加します。
+     * { added: number, queued: number, failures: Array<{ index: number, message: string }> } で resolve します。
+     */
+    @ReactMethod
+    public void peerConnectionAddICECandidates(@NonNull ReadableArray candidatesJson, @NonNull String valueTag, @NonNull Promise promise) {
+        Log.d(getName(), "peerConnectionAddICECandidates() - count=" + candidatesJson.size());
+        final PeerConnection peerConnection = repository.getPeerConnectionByValueTag(valueTag);
+        final WebRTCPeerConnectionObserver observer = repository.getPeerConnectionObserverByValueTag(valueTag);
+        if (peerConnection == null || observer == null) {
+            promise.reject("NotFoundError", "peer connection is not found");
+            return;
+        }
+        final List<IceCandidate> candidates = new ArrayList<>(candidatesJson.size());
+        // candidates の各要素の candidatesJson でのインデックス
+        final List<Integer> indices = new ArrayList<>(candidatesJson.size());
+        final WritableArray failures = Arguments.createArray();
+        for (int i = 0; i < candidatesJson.size(); i++) {
+            final ReadableMap candidateJson = candidatesJson.getMap(i);
+            if (candidateJson == null) {
+                failures.pushMap(batchFailureJsonValue(i, "candidate is null"));
+                continue;
+            }
+            candidates.add(iceCandidate(candidateJson));
+            indices.add(i);
+        }
+
+        final WritableMap result = Arguments.createMap();
+        if (observer.enqueueRemoteCandidatesIfNeeded(candidates)) {
+            result.putInt("added", 0);
+            result.putInt("queued", candidates.size());
+        } else {
+            int added = 0;
+            for (int i = 0; i < candidates.size(); i++) {
+                if (peerConnection.addIceCandidate(candidates.get(i))) {
+                    added++;
+                } else {
+                    failures.pushMap(batchFailureJsonValue(indices.get(i), "addIceCandidate failed"));
+                }
+            }
+            result.putInt("added", added);
+            result.putInt("queued", 0);
+        }
+        result.putArray("failures", failures);
+        promise.resolve(result);
+    }
+
+    /**
+     * peerConnectionSetICECandidateBatching(valueTag: ValueTag, options: { flushInterval: number } | null)
+     * 収集した ICE candidate を flushInterval ミリ秒の間まとめて `peerConnectionGotICECandidates` イベントで通知します。
+     * null を指定すると 1 つごとに `peerConnectionGotICECandidate` イベントで通知します。
+     */
+    @ReactMethod
+    public void peerConnectionSetICECandidateBatching(@Nullable ReadableMap optionsJson, @NonNull String valueTag) {
+        Log.d(getName(), "peerConnectionSetICECandidateBatching() - valueTag=" + valueTag);
+        final WebRTCPeerConnectionObserver observer = repository.getPeerConnectionObserverByValueTag(valueTag);
+        if (observer == null) return;
+        if (optionsJson == null) {
+            observer.setIceCandidateBatching(0);
+            return;
+        }
+        observer.setIceCandidateBatching(jint(optionsJson, "flushInterval", DEFAULT_ICE_CANDIDATE_FLUSH_INTERVAL_MS));
+    }
+
+    /**
+     * peerConnectionSetIceRecoveryPolicy(valueTag: ValueTag, policy: Object | null)
+     * ICE の接続が切れた場合に、PeerConnection を閉じずに ICE restart で復旧を試みるようにします。
+     * policy の項目は disconnectedTimeout, maxRestartAttempts, initialBackoff, maxBackoff, restartTimeout (時間の単位はミリ秒) です。
+     * null を指定すると従来通り、DISCONNECTED または FAILED になった時点で閉じます。
+     * 復旧の各段階は `peerConnectionIceRecovery` イベントで通知します。
+     */
+    @ReactMethod
+    public void peerConnectionSetIceRecoveryPolicy(@Nullable ReadableMap policyJson, @NonNull String valueTag) {
+        Log.d(getName(), "peerConnectionSetIceRecoveryPolicy() - valueTag=" + valueTag + " policy=" + policyJson);
+        final WebRTCPeerConnectionObserver observer = repository.getPeerConnectionObserverByValueTag(valueTag);
+        if (observer == null) return;
+        if (policyJson == null) {
+            observer.setIceRecoveryPolicy(null);
+            return;
+        }
+        observer.setIceRecoveryPolicy(new WebRTCIceRecovery.Policy(
+                Math.max(0, jint(policyJson, "disconnectedTimeout", WebRTCIceRecovery.Policy.DEFAULT_DISCONNECTED_TIMEOUT_MS)),
+                Math.max(0, jint(policyJson, "maxRestartAttempts", WebRTCIceRecovery.Policy.DEFAULT_MAX_RESTART_ATTEMPTS)),
+                Math.max(0, jint(policyJson, "initialBackoff", WebRTCIceRecovery.Policy.DEFAULT_INITIAL_BACKOFF_MS)),
+                Math.max(0, jint(policyJson, "maxBackoff", WebRTCIceRecovery.Policy.DEFAULT_MAX_BACKOFF_MS)),
+                Math.max(0, jint(policyJson, "restartTimeout", WebRTCIceRecovery.Policy.DEFAULT_RESTART_TIMEOUT_MS))));
+    }
+
     /**
      * peerConnectionClose(valueTag: ValueTag)
      */
@@ -648,10 +1002,98 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         if (peerConnection == null) {
             return;
         }
+        final WebRTCStatsSampler sampler = statsSamplers.remove(valueTag);
+        if (sampler != null) {
+            sampler.stop();
+        }
+        final WebRTCPeerConnectionObserver observer = repository.getPeerConnectionObserverByValueTag(valueTag);
+        if (observer != null) {
+            // 未通知の ICE candidate を通知し、ワーカースレッドに残っている flush のタスクを取り除く
+            observer.setIceCandidateBatching(0);
+            // 破棄済みの PeerConnection の restartIce() を呼び出さないよう、dispose() より先に復旧を止める
+            observer.setIceRecoveryPolicy(null);
+        }
         repository.removePeerConnectionByValueTag(valueTag);
+        latencyTracer.remove(valueTag);
         peerConnection.dispose();
     }
 
+    /**
+     * peerConnectionGetStats(types: Array<string> | null, valueTag: ValueTag): Promise<Array<Object>>
+     * types を指定した場合は、その type (例: "outbound-rtp", "candidate-pair") の統計情報のみを返します。
+     */
+    @ReactMethod
+    public void peerConnectionGetStats(@Nullable ReadableArray types, @NonNull String valueTag, @NonNull Promise promise) {
+        Log.d(getName(), "peerConnectionGetStats() - valueTag=" + valueTag);
+        final PeerConnection peerConnection = repository.getPeerConnectionByValueTag(valueTag);
+        if (peerConnection == null) {
+            promise.reject("NotFoundError", "peer connection is not found");
+            return;
+        }
+        final Set<String> typeSet = (types == null) ? null : new HashSet<>(toStringList(types));
+        final RTCStatsCollectorCallback callback = new RTCStatsCollectorCallback() {
+            @Override
+            public void onStatsDelivered(RTCStatsReport report) {
+                promise.resolve(rtcStatsReportJsonValue(report, typeSet));
+            }
+        };
+        peerConnection.getStats(callback);
+    }
+
+    /**
+     * peerConnectionStartStatsSampler(valueTag: ValueTag, options: { interval: number, historySize: number } | null)
+     * 統計情報を一定間隔で取得し、差分を計算した結果を `peerConnectionStatsSample` イベントで通知します。
+     * すでにサンプリング中の場合は何もしません。
+     */
+    @ReactMethod
+    public void peerConnectionStartStatsSampler(@Nullable ReadableMap optionsJson, @NonNull String valueTag) {
+        Log.d(getName(), "peerConnectionStartStatsSampler() - valueTag=" + valueTag);
+        final PeerConnection peerConnection = repository.getPeerConnectionByValueTag(valueTag);
+        if (peerConnection == null || statsSamplers.containsKey(valueTag)) {
+            return;
+        }
+        int interval = WebRTCStatsSampler.DEFAULT_INTERVAL_MS;
+        int historySize = WebRTCStatsSampler.DEFAULT_HISTORY_SIZE;
+        if (optionsJson != null) {
+            interval = jint(optionsJson, "interval", interval);
+            historySize = jint(optionsJson, "historySize", historySize);
+        }
+        final WebRTCStatsSampler sampler = new WebRTCStatsSampler(reactContext,
+                getWorkerHandler(),
+                valueTag,
+                peerConnection,
+                interval,
+                historySize);
+        statsSamplers.put(valueTag, sampler);
+        sampler.start();
+    }
+
+    /**
+     * peerConnectionStopStatsSampler(valueTag: ValueTag)
+     */
+    @ReactMethod
+    public void peerConnectionStopStatsSampler(@NonNull String valueTag) {
+        Log.d(getName(), "peerConnectionStopStatsSampler() - valueTag=" + valueTag);
+        final WebRTCStatsSampler sampler = statsSamplers.remove(valueTag);
+        if (sampler == null) return;
+        sampler.stop();
+    }
+
+    /**
+     * peerConnectionGetStatsSamples(valueTag: ValueTag): Promise<Array<Object>>
+     * サンプラーが保持している直近のサンプルを古い順に返します。
+     */
+    @ReactMethod
+    public void peerConnectionGetStatsSamples(@NonNull String valueTag, @NonNull Promise promise) {
+        Log.d(getName(), "peerConnectionGetStatsSamples() - valueTag=" + valueTag);
+        final WebRTCStatsSampler sampler = statsSamplers.get(valueTag);
+        if (sampler == null) {
+            promise.reject("NotFoundError", "stats sampler is not running");
+            return;
+        }
+        sampler.getHistory(promise::resolve);
+    }
+
     /**
      * rtpEncodingParametersSetActive(owner: ValueTag, ssrc: number | null, flag: boolean)
      */
@@ -660,9 +1102,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
                                                long ssrc,
                                                @NonNull String ownerValueTag) {
         Log.d(getName(), "rtpEncodingParametersSetActive()");
-        final RtpParameters.Encoding encodingParams = repository.getRtpEncodingParametersByValueTag(ownerValueTag, ssrc);
-        if (encodingParams == null) return;
-        encodingParams.active = flag;
+        setSenderEncodingParameters(ownerValueTag, ssrc, encoding -> encoding.active = flag);
     }
 
     /**
@@ -673,9 +1113,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
                                                    long ssrc,
                                                    @NonNull String ownerValueTag) {
         Log.d(getName(), "rtpEncodingParametersSetMaxBitrate()");
-        final RtpParameters.Encoding encodingParams = repository.getRtpEncodingParametersByValueTag(ownerValueTag, ssrc);
-        if (encodingParams == null) return;
-        encodingParams.maxBitrateBps = bitrate;
+        setSenderEncodingParameters(ownerValueTag, ssrc, encoding -> encoding.maxBitrateBps = bitrate);
     }
 
     /**
@@ -686,9 +1124,107 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
                                                    long ssrc,
                                                    @NonNull String ownerValueTag) {
         Log.d(getName(), "rtpEncodingParametersSetMinBitrate()");
-        final RtpParameters.Encoding encodingParams = repository.getRtpEncodingParametersByValueTag(ownerValueTag, ssrc);
-        if (encodingParams == null) return;
-        encodingParams.minBitrateBps = bitrate;
+        setSenderEncodingParameters(ownerValueTag, ssrc, encoding -> encoding.minBitrateBps = bitrate);
+    }
+
+    /**
+     * setLazyRtpParameters(enabled: boolean)
+     */
+    @ReactMethod
+    public void setLazyRtpParameters(boolean isEnabled) {
+        Log.d(getName(), "setLazyRtpParameters() - isEnabled=" + isEnabled);
+        isLazyRtpParametersEnabled = isEnabled;
+    }
+
+    /**
+     * enableLatencyTracer(enabled: boolean)
+     * 無効にしても記録済みのトレースは残ります。
+     */
+    @ReactMethod
+    public void enableLatencyTracer(boolean isEnabled) {
+        Log.d(getName(), "enableLatencyTracer() - isEnabled=" + isEnabled);
+        latencyTracer.setEnabled(isEnabled);
+    }
+
+    /**
+     * peerConnectionGetLatencyTrace(valueTag: ValueTag): Promise<Array<[string, number]>>
+     * 到達したマイルストーンと、peerConnectionInit からの経過時間 (ミリ秒) の組を返します。
+     */
+    @ReactMethod
+    public void peerConnectionGetLatencyTrace(@NonNull String valueTag, @NonNull Promise promise) {
+        Log.d(getName(), "peerConnectionGetLatencyTrace() - valueTag=" + valueTag);
+        promise.resolve(latencyTracer.traceJsonValue(valueTag));
+    }
+
+    /**
+     * rtpParametersGet(valueTag: ValueTag): Promise<RTCRtpParameters>
+     * valueTag には sender または receiver の valueTag を指定します。
+     */
+    @ReactMethod
+    public void rtpParametersGet(@NonNull String valueTag, @NonNull Promise promise) {
+        Log.d(getName(), "rtpParametersGet() - valueTag=" + valueTag);
+        final WritableMap parameters = repository.getRtpParametersJsonValueByValueTag(valueTag);
+        if (parameters == null) {
+            promise.reject("NotFoundError", "sender or receiver is not found");
+            return;
+        }
+        promise.resolve(parameters);
+    }
+
+    /**
+     * senderSetParameters(valueTag: ValueTag, patch: Object): Promise<RTCRtpParameters>
+     * 複数のエンコーディングへの変更を、1 回の getParameters() → 変更 → setParameters() でまとめて適用します。
+     * パッチの形式は WebRTCConverter.applyRtpParametersPatch() を参照してください。
+     * 適用後の RtpParameters で resolve します。
+     */
+    @ReactMethod
+    public void senderSetParameters(@NonNull ReadableMap patchJson, @NonNull String valueTag, @NonNull Promise promise) {
+        Log.d(getName(), "senderSetParameters() - valueTag=" + valueTag);
+        final RtpSender sender = repository.senders.getByValueTag(valueTag);
+        if (sender == null) {
+            promise.reject("NotFoundError", "sender is not found");
+            return;
+        }
+        // setParameters() には直前の getParameters() の transactionId が必要なので、キャッシュは使わずに取得する
+        final RtpParameters parameters = sender.getParameters();
+        try {
+            applyRtpParametersPatch(parameters, patchJson);
+        } catch (final IllegalArgumentException e) {
+            promise.reject("InvalidModificationError", e);
+            return;
+        }
+        final boolean isApplied = sender.setParameters(parameters);
+        repository.invalidateRtpParameters(valueTag);
+        if (!isApplied) {
+            promise.reject("InvalidModificationError", "setParameters failed");
+            return;
+        }
+        promise.resolve(rtpParametersJsonValue(parameters));
+    }
+
+    private interface EncodingParametersModifier {
+        void modify(@NonNull RtpParameters.Encoding encoding);
+    }
+
+    /**
+     * 指定された sender の ssrc に一致するエンコーディングを変更し、setParameters() で適用します。
+     */
+    private void setSenderEncodingParameters(@NonNull final String ownerValueTag,
+                                             final long ssrc,
+                                             @NonNull final EncodingParametersModifier modifier) {
+        final RtpSender sender = repository.senders.getByValueTag(ownerValueTag);
+        if (sender == null) return;
+        final RtpParameters parameters = sender.getParameters();
+        for (final RtpParameters.Encoding encoding : parameters.encodings) {
+            if (encoding.ssrc != null && encoding.ssrc == ssrc) {
+                modifier.modify(encoding);
+                if (!sender.setParameters(parameters)) {
+                    Log.w(getName(), "setSenderEncodingParameters() - setParameters failed");
+                }
+                repository.invalidateRtpParameters(ownerValueTag);
+                return;
+            }
+        }
     }
 
     /**
@@ -713,7 +1249,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         final Pair<String, DataChannel> dataChannelPair = new Pair<>(dataChannelValueTag, dataChannel);
         observer.dataChannelPair = dataChannelPair;
         dataChannel.registerObserver(observer);
-        repository.addDataChannel(dataChannelPair);
+        repository.addDataChannel(dataChannelPair, observer);
         Log.d(getName(), "peerConnectionCreateDataChannel()" + dataChannelJsonValue(dataChannel, dataChannelValueTag));
         promise.resolve(dataChannelJsonValue(dataChannel, dataChannelValueTag));
     }
@@ -736,32 +1272,491 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         dataChannel.close();
     }
 
+    /**
+     * dataChannelSetBinaryType(valueTag: ValueTag, binaryType: string)
+     * "blob" を指定すると、受信したバイナリデータを base64 を経由せずに BlobModule 経由で JS 側に渡します。
+     * それ以外の値の場合は従来通り base64 encode した文字列を渡します。
+     */
+    @ReactMethod
+    public void dataChannelSetBinaryType(@NonNull String binaryType, @NonNull String valueTag) {
+        Log.d(getName(), "dataChannelSetBinaryType() - valueTag=" + valueTag + " binaryType=" + binaryType);
+        final WebRTCDataChannelObserver observer = repository.getDataChannelObserverByValueTag(valueTag);
+        if (observer == null) {
+            return;
+        }
+        observer.usesBlobForBinary = binaryType.equals("blob");
+    }
+
+    /**
+     * dataChannelSetMessageBatching(valueTag: ValueTag, options: { maxCount: number, maxBytes: number, flushInterval: number } | null)
+     * options を指定すると、受信メッセージをまとめて `dataChannelOnMessages` イベントで通知します。
+     * null を指定すると従来通り 1 メッセージごとに `dataChannelOnMessage` イベントで通知します。
+     */
+    @ReactMethod
+    public void dataChannelSetMessageBatching(@Nullable ReadableMap optionsJson, @NonNull String valueTag) {
+        Log.d(getName(), "dataChannelSetMessageBatching() - valueTag=" + valueTag + " options=" + optionsJson);
+        final WebRTCDataChannelObserver observer = repository.getDataChannelObserverByValueTag(valueTag);
+        if (observer == null) {
+            return;
+        }
+        if (optionsJson == null) {
+            observer.setMessageBatching(null);
+            return;
+        }
+        observer.setMessageBatching(new WebRTCDataChannelObserver.MessageBatching(
+                Math.max(1, jint(optionsJson, "maxCount", 64)),
+                Math.max(1, (long) jdouble(optionsJson, "maxBytes", 256 * 1024)),
+                Math.max(0, jint(optionsJson, "flushInterval", 20))));
+    }
+
     /**
      * dataChannelSend(buffer: ReadableMap, valueTag: ValueTag): Promise<void>
      */
     @ReactMethod
     public void dataChannelSend(@NonNull ReadableMap sendBufferJson, @NonNull String valueTag, @NonNull Promise promise) {
-        Log.d(getName(), "dataChannelSend() - valueTag=" + valueTag + " sendBufferJson=" + sendBufferJson);
+        // 送信データはサイズが大きくなり得るのでログには出力しない
+        Log.d(getName(), "dataChannelSend() - valueTag=" + valueTag);
         final DataChannel dataChannel = repository.getDataChannelByValueTag(valueTag);
         if (dataChannel == null) {
             promise.reject("NotFoundError", "dataChannel is not found");
             return;
         }
-        final DataChannel.Buffer buffer = dataChannelBuffer(sendBufferJson);
-        dataChannel.send(buffer);
+        if (dataChannel.state() != DataChannel.State.OPEN) {
+            promise.reject("InvalidStateError", "dataChannel is not open");
+            return;
+        }
+        final DataChannel.Buffer buffer = dataChannelBuffer(sendBufferJson, reactContext.getNativeModule(BlobModule.class));
+        if (!sendDataChannelBuffer(valueTag, dataChannel, buffer)) {
+            promise.reject("OperationError", "send failed");
+            return;
+        }
         promise.resolve(null);
     }
 
+    /**
+     * dataChannelSendBatch(buffers: Array<ReadableMap>, valueTag: ValueTag): Promise<Object>
+     * 複数のメッセージを 1 回のブリッジ呼び出しでまとめて順番に送信します。
+     * 変換や送信に失敗したメッセージがあっても残りの送信は続行し、失敗したメッセージのインデックスと理由を結果に含めます。
+     * 結果は { sent: number, failures: Array<{ index: number, message: string }>, bufferedAmount: number } です。
+     */
+    @ReactMethod
+    public void dataChannelSendBatch(@NonNull ReadableArray buffersJson, @NonNull String valueTag, @NonNull Promise promise) {
+        Log.d(getName(), "dataChannelSendBatch() - valueTag=" + valueTag + " count=" + buffersJson.size());
+        final DataChannel dataChannel = repository.getDataChannelByValueTag(valueTag);
+        if (dataChannel == null) {
+            promise.reject("NotFoundError", "dataChannel is not found");
+            return;
+        }
+        if (dataChannel.state() != DataChannel.State.OPEN) {
+            promise.reject("InvalidStateError", "dataChannel is not open");
+            return;
+        }
+        final BlobModule blobModule = reactContext.getNativeModule(BlobModule.class);
+        final WritableArray failures = Arguments.createArray();
+        int sent = 0;
+        for (int i = 0; i < buffersJson.size(); i++) {
+            String failure;
+            try {
+                final ReadableMap bufferJson = buffersJson.getMap(i);
+                if (bufferJson == null) {
+                    throw new IllegalArgumentException("invalid dataChannelBuffer");
+                }
+                failure = sendDataChannelBuffer(valueTag, dataChannel, dataChannelBuffer(bufferJson, blobModule)) ? null : "send failed";
+            } catch (final RuntimeException e) {
+                failure = e.getMessage();
+            }
+            if (failure == null) {
+                sent++;
+            } else {
+                failures.pushMap(batchFailureJsonValue(i, failure));
+            }
+        }
+        final WritableMap result = Arguments.createMap();
+        result.putInt("sent", sent);
+        result.putArray("failures", failures);
+        // XXX: putLong()が存在しないため double として渡す
+        result.putDouble("bufferedAmount", dataChannelBufferedAmount(valueTag, dataChannel));
+        promise.resolve(result);
+    }
+
+    /**
+     * dataChannelSetFlowControl(valueTag: ValueTag, options: { highWatermark: number, lowWatermark: number } | null)
+     * options を指定すると、送信データをネイティブのキューに積み、bufferedAmount が highWatermark を超えている間は送信を保留します。
+     * その間は bufferedAmount の変化ごとのイベント通知は行わず、lowWatermark を下回ったときのみ
+     * `dataChannelOnBufferedAmountLow` イベントで通知します。
+     * null を指定するとフロー制御をやめ、キューに残っているデータをすべて送信します。
+     * 以降の送信も順序を保つためキューを経由しますが、bufferedAmount に関係なく即座に送信します。
+     */
+    @ReactMethod
+    public void dataChannelSetFlowControl(@Nullable ReadableMap optionsJson, @NonNull String valueTag) {
+        Log.d(getName(), "dataChannelSetFlowControl() - valueTag=" + valueTag + " options=" + optionsJson);
+        final DataChannel dataChannel = repository.getDataChannelByValueTag(valueTag);
+        final WebRTCDataChannelObserver observer = repository.getDataChannelObserverByValueTag(valueTag);
+        if (dataChannel == null || observer == null) {
+            return;
+        }
+        // キューを差し替えると、保留中のデータが失われたり新しいデータと順序が入れ替わったりするため、
+        // 一度生成したキューは使い続け、設定だけを変更する
+        final WebRTCDataChannelSendQueue queue = observer.sendQueue;
+        if (optionsJson == null) {
+            if (queue != null) {
+                queue.flush();
+            }
+            return;
+        }
+        final long highWatermark = (long) jdouble(optionsJson, "highWatermark", WebRTCDataChannelSendQueue.DEFAULT_HIGH_WATERMARK);
+        final long lowWatermark = (long) jdouble(optionsJson, "lowWatermark", WebRTCDataChannelSendQueue.DEFAULT_LOW_WATERMARK);
+        if (queue != null) {
+            queue.configure(highWatermark, lowWatermark);
+            return;
+        }
+        observer.sendQueue = new WebRTCDataChannelSendQueue(dataChannel,
+                getWorkerHandler(),
+                highWatermark,
+                lowWatermark,
+                observer::onBufferedAmountLow);
+    }
+
+    /**
+     * dataChannelSendFile(valueTag: ValueTag, uri: string, options: { chunkSize: number, highWatermark: number, progressInterval: number } | null): Promise<Object>
+     * ファイルの内容をチャンク単位で送信します。ファイルの内容はブリッジを通りません。
+     * 進捗は `dataChannelFileTransferProgress` イベントで通知し、送信が完了すると { transferredBytes: number } で resolve します。
+     */
+    @ReactMethod
+    public void dataChannelSendFile(@NonNull String uri, @Nullable ReadableMap optionsJson, @NonNull String valueTag, @NonNull Promise promise) {
+        Log.d(getName(), "dataChannelSendFile() - valueTag=" + valueTag + " uri=" + uri);
+        final DataChannel dataChannel = repository.getDataChannelByValueTag(valueTag);
+        final WebRTCDataChannelObserver observer = repository.getDataChannelObserverByValueTag(valueTag);
+        if (dataChannel == null || observer == null) {
+            promise.reject("NotFoundError", "dataChannel is not found");
+            return;
+        }
+        if (observer.fileSender != null) {
+            promise.reject("InvalidStateError", "another file is being sent");
+            return;
+        }
+        int chunkSize = WebRTCFileTransfer.DEFAULT_CHUNK_SIZE;
+        long highWatermark = WebRTCFileTransfer.DEFAULT_HIGH_WATERMARK;
+        int progressInterval = WebRTCFileTransfer.DEFAULT_PROGRESS_INTERVAL_MS;
+        if (optionsJson != null) {
+            chunkSize = Math.max(1, jint(optionsJson, "chunkSize", chunkSize));
+            highWatermark = (long) jdouble(optionsJson, "highWatermark", highWatermark);
+            progressInterval = jint(optionsJson, "progressInterval", progressInterval);
+        }
+        final WebRTCFileTransfer.Sender sender;
+        try {
+            sender = new WebRTCFileTransfer.Sender(reactContext,
+                    valueTag,
+                    dataChannel,
+                    getFileIoHandler(),
+                    WebRTCFileTransfer.openForRead(reactContext, uri),
+                    chunkSize,
+                    highWatermark,
+                    progressInterval,
+                    promise);
+        } catch (final IOException e) {
+            promise.reject("NotReadableError", e);
+            return;
+        }
+        sender.onFinished = () -> {
+            if (observer.fileSender == sender) {
+                observer.fileSender = null;
+            }
+        };
+        observer.fileSender = sender;
+        sender.start();
+    }
+
+    /**
+     * dataChannelReceiveFile(valueTag: ValueTag, uri: string, size: number, options: { progressInterval: number } | null): Promise<Object>
+     * 以降に受信したバイナリメッセージを、size バイトに達するまで指定されたファイルに書き込みます。
+     * その間バイナリメッセージは JS 側に通知されません。
+     * 進捗は `dataChannelFileTransferProgress` イベントで通知し、受信が完了すると { transferredBytes: number } で resolve します。
+     */
+    @ReactMethod
+    public void dataChannelReceiveFile(@NonNull String uri, double size, @Nullable ReadableMap optionsJson, @NonNull String valueTag, @NonNull Promise promise) {
+        Log.d(getName(), "dataChannelReceiveFile() - valueTag=" + valueTag + " uri=" + uri + " size=" + size);
+        final WebRTCDataChannelObserver observer = repository.getDataChannelObserverByValueTag(valueTag);
+        if (observer == null) {
+            promise.reject("NotFoundError", "dataChannel is not found");
+            return;
+        }
+        if (observer.fileReceiver != null) {
+            promise.reject("InvalidStateError", "another file is being received");
+            return;
+        }
+        // 0 以下や NaN では受信が完了せず、Promise が解決されないままファイルが開きっぱなしになる
+        if (!(size > 0) || Double.isInfinite(size)) {
+            promise.reject("TypeError", "size must be a positive finite number");
+            return;
+        }
+        int progressInterval = WebRTCFileTransfer.DEFAULT_PROGRESS_INTERVAL_MS;
+        if (optionsJson != null) {
+            progressInterval = jint(optionsJson, "progressInterval", progressInterval);
+        }
+        final WebRTCFileTransfer.Receiver receiver;
+        try {
+            receiver = new WebRTCFileTransfer.Receiver(reactContext,
+                    valueTag,
+                    getFileIoHandler(),
+                    WebRTCFileTransfer.openForWrite(uri),
+                    (long) size,
+                    progressInterval,
+                    promise);
+        } catch (final IOException e) {
+            promise.reject("NotWritableError", e);
+            return;
+        }
+        receiver.onFinished = () -> {
+            if (observer.fileReceiver == receiver) {
+                observer.fileReceiver = null;
+            }
+        };
+        observer.fileReceiver = receiver;
+    }
+
+    /**
+     * dataChannelCancelFileTransfer(valueTag: ValueTag)
+     * 送受信中のファイル転送を中止します。
+     */
+    @ReactMethod
+    public void dataChannelCancelFileTransfer(@NonNull String valueTag) {
+        Log.d(getName(), "dataChannelCancelFileTransfer() - valueTag=" + valueTag);
+        final WebRTCDataChannelObserver observer = repository.getDataChannelObserverByValueTag(valueTag);
+        if (observer == null) return;
+        observer.cancelFileTransfers();
+    }
+
+    /**
+     * フロー制御が有効な場合は送信キューに積み、そうでない場合は直接送信します。
+     */
+    private boolean sendDataChannelBuffer(@NonNull final String valueTag,
+                                          @NonNull final DataChannel dataChannel,
+                                          @NonNull final DataChannel.Buffer buffer) {
+        final WebRTCDataChannelObserver observer = repository.getDataChannelObserverByValueTag(valueTag);
+        final WebRTCDataChannelSendQueue queue = (observer == null) ? null : observer.sendQueue;
+        if (queue != null) {
+            return queue.enqueue(buffer);
+        }
+        return dataChannel.send(buffer);
+    }
+
+    /**
+     * DataChannel の bufferedAmount に、送信キューに残っているバイト数を加えた値を返します。
+     */
+    private long dataChannelBufferedAmount(@NonNull final String valueTag, @NonNull final DataChannel dataChannel) {
+        final WebRTCDataChannelObserver observer = repository.getDataChannelObserverByValueTag(valueTag);
+        final WebRTCDataChannelSendQueue queue = (observer == null) ? null : observer.sendQueue;
+        return dataChannel.bufferedAmount() + ((queue == null) ? 0 : queue.getQueuedBytes());
+    }
+
     //endregion
 
 
+    /**
+     * まとめて処理する ReactMethod の結果に含める、失敗した要素の情報を返します。
+     */
+    @NonNull
+    private static WritableMap batchFailureJsonValue(final int index, @Nullable final String message) {
+        final WritableMap json = Arguments.createMap();
+        json.putInt("index", index);
+        json.putString("message", message);
+        return json;
+    }
+
     @NonNull
     EglBase.Context getEglContext() {
-        return eglBase.getEglBaseContext();
+        return getEngine().eglBase.getEglBaseContext();
+    }
+
+    //region Engine
+
+    /**
+     * engine の生成をバックグラウンドのスレッドで開始します。すでに開始している場合は何もしません。
+     */
+    private void startLoadingEngine() {
+        synchronized (this) {
+            if (isEngineLoadingStarted) return;
+            isEngineLoadingStarted = true;
+        }
+        final Thread thread = new Thread(() -> {
+            try {
+                final WebRTCEngine createdEngine = WebRTCEngine.create(reactContext);
+                // 破棄時に engine.dispose() で確実に監視を止められるよう、engine を公開する前に開始しておく
+                createdEngine.cameraCapturer.startMonitoring(reactContext, getWorkerHandler());
+                engine = createdEngine;
+            } catch (final RuntimeException e) {
+                Log.e(getName(), "startLoadingEngine() - failed to create engine", e);
+                engineError = e;
+            }
+            engineLatch.countDown();
+            final List<Promise> promises;
+            synchronized (this) {
+                promises = new ArrayList<>(preparePromises);
+                preparePromises.clear();
+            }
+            for (final Promise promise : promises) {
+                resolvePrepare(promise);
+            }
+            final List<Runnable> tasks;
+            synchronized (this) {
+                tasks = new ArrayList<>(engineReadyTasks);
+                engineReadyTasks.clear();
+            }
+            if (engine != null && !tasks.isEmpty()) {
+                final Handler mainHandler = new Handler(Looper.getMainLooper());
+                for (final Runnable task : tasks) {
+                    mainHandler.post(task);
+                }
+            }
+
+            // engine の準備ができたら、続けてこのスレッドでカメラデバイスを列挙しておく
+            // 以降の getUserMedia() と enumerateDevices() はキャッシュを使う
+            final WebRTCEngine loadedEngine = engine;
+            if (loadedEngine != null) {
+                loadedEngine.cameraCapturer.getCatalog();
+            }
+        }, "WebRTCModuleInitThread");
+        thread.start();
+    }
+
+    private void resolvePrepare(@NonNull final Promise promise) {
+        if (engine != null) {
+            promise.resolve(null);
+        } else {
+            promise.reject("InvalidStateError", engineError);
+        }
+    }
+
+    /**
+     * engine の生成が完了したら、メインスレッドで task を実行します。メインスレッドから呼び出してください。
+     * すでに生成が完了している場合は即座に実行し、完了していない場合は生成を開始して待たずに戻ります。
+     * UI スレッドで getEngine() の完了を待たないために使います。engine の生成に失敗した場合は実行しません。
+     */
+    void runWhenEngineReady(@NonNull final Runnable task) {
+        if (engine == null) {
+            synchronized (this) {
+                // engineLatch の解放前に追加したものは、生成したスレッドが engineLatch の解放後に取り出して実行する
+                if (engineLatch.getCount() > 0) {
+                    engineReadyTasks.add(task);
+                    startLoadingEngine();
+                    return;
+                }
+            }
+        }
+        if (engine != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * engine を返します。生成が完了していない場合は、生成を開始して完了するまで待ちます。
+     *
+     * @throws IllegalStateException engine の生成に失敗した場合
+     */
+    @NonNull
+    WebRTCEngine getEngine() {
+        final WebRTCEngine current = engine;
+        if (current != null) return current;
+        startLoadingEngine();
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                engineLatch.await();
+                break;
+            } catch (final InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+        final WebRTCEngine loaded = engine;
+        if (loaded == null) {
+            throw new IllegalStateException("failed to create WebRTC engine", engineError);
+        }
+        return loaded;
+    }
+
+    /**
+     * 生成を開始している場合のみ、完了を待って engine を返します。
+     * 破棄時に、不要な engine を生成しないために使います。
+     */
+    @Nullable
+    private WebRTCEngine getEngineIfLoadingStarted() {
+        synchronized (this) {
+            if (!isEngineLoadingStarted) return null;
+        }
+        try {
+            return getEngine();
+        } catch (final IllegalStateException e) {
+            return null;
+        }
+    }
+
+    //endregion
+
+    /**
+     * タイマー処理用のスレッドで動作する Handler を返します。
+     * signaling スレッドからも呼び出されるため同期しています。
+     */
+    @NonNull
+    synchronized Handler getWorkerHandler() {
+        if (workerHandler == null) {
+            workerThread = new HandlerThread("WebRTCModuleWorkerThread");
+            workerThread.start();
+            workerHandler = new Handler(workerThread.getLooper());
+        }
+        return workerHandler;
+    }
+
+    /**
+     * ファイル転送のファイルの読み書きを行うスレッドで動作する Handler を返します。
+     * signaling スレッドからも呼び出されるため同期しています。
+     */
+    @NonNull
+    synchronized Handler getFileIoHandler() {
+        if (fileIoHandler == null) {
+            fileIoThread = new HandlerThread("WebRTCModuleFileIOThread");
+            fileIoThread.start();
+            fileIoHandler = new Handler(fileIoThread.getLooper());
+        }
+        return fileIoHandler;
+    }
+
+    /**
+     * すべての DataChannel のファイル転送を中止し、ファイル I/O のスレッドで中止の処理が終わるまで待ちます。
+     */
+    private void cancelAllFileTransfers() {
+        final Handler handler;
+        synchronized (this) {
+            handler = fileIoHandler;
+        }
+        if (handler == null) return;
+        for (final WebRTCDataChannelObserver observer : repository.allDataChannelObservers()) {
+            observer.cancelFileTransfers();
+        }
+        // Handler のタスクは順番に実行されるので、これが実行された時点で先に投入された中止の処理は完了している
+        final CountDownLatch latch = new CountDownLatch(1);
+        handler.post(latch::countDown);
+        try {
+            latch.await(FILE_TRANSFER_CANCEL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @NonNull
     String createNewValueTag() {
+        return repository.createNewValueTag();
+    }
+
+    /**
+     * libwebrtc に渡す MediaStream やトラックの ID を生成します。
+     * これらの ID は SDP を通じて相手にも伝わり、相手側の ID と衝突しないように UUID を使います。
+     */
+    @NonNull
+    String createNewId() {
         return UUID.randomUUID().toString();
     }
 
@@ -7,6 +7,7 @@ import android.util.Pair;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.queue.ReactQueueConfiguration;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
@@ -20,6 +21,9 @@ import org.webrtc.RtpReceiver;
 import org.webrtc.RtpSender;
 import org.webrtc.RtpTransceiver;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.dataChannelJsonValue;
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.peerConnectionStateStringValue;
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.iceConnectionStateStringValue;
@@ -36,7 +40,12 @@ final class WebRTCPeerConnectionObserver implements PeerConnection.Observer {
      * First is valueTag, Seconds is PeerConnection.
      */
     @Nullable
-    Pair<String, PeerConnection> peerConnectionPair = null;
+    volatile Pair<String, PeerConnection> peerConnectionPair = null;
+    /**
+     * ICE の接続が切れた場合の復旧処理です。null の場合は従来通り、DISCONNECTED または FAILED になった時点で閉じます。
+     */
+    @Nullable
+    private volatile WebRTCIceRecovery iceRecovery = null;
 
     WebRTCPeerConnectionObserver(@NonNull final ReactContext reactContext) {
         this.reactContext = reactContext;
@@ -70,6 +79,9 @@ final class WebRTCPeerConnectionObserver implements PeerConnection.Observer {
         final WebRTCModule module = getModule();
         final ReactQueueConfiguration queueConfiguration = module.getReactContext().getCatalystInstance().getReactQueueConfiguration();
         final String valueTag = peerConnectionPair.first;
+        // 未通知の ICE candidate を取りこぼさないように通知しておく
+        setIceCandidateBatching(0);
+        setIceRecoveryPolicy(null);
         peerConnectionPair = null;
         queueConfiguration.getNativeModulesQueueThread().runOnQueue(() -> {
             module.peerConnectionClose(valueTag);
@@ -82,6 +94,8 @@ final class WebRTCPeerConnectionObserver implements PeerConnection.Observer {
     public void onSignalingChange(@NonNull final PeerConnection.SignalingState newSignalingState) {
         if (peerConnectionPair == null) return;
         Log.d("WebRTCModule", "onSignalingChange()[" + peerConnectionPair.first + "] - newSignalingState=" + newSignalingState);
+        // SDP の適用によってエンコーディング等が変わり得るので、RtpParameters のキャッシュを破棄する
+        getModule().repository.invalidateRtpParametersOf(peerConnectionPair.first);
         final WritableMap params = Arguments.createMap();
         params.putString("valueTag", peerConnectionPair.first);
         params.putString("signalingState", signalingStateStringValue(newSignalingState));
@@ -92,6 +106,9 @@ final class WebRTCPeerConnectionObserver implements PeerConnection.Observer {
     public  void onConnectionChange(@NonNull final PeerConnection.PeerConnectionState newState) {
         if (peerConnectionPair == null) return;
         Log.d("WebRTCModule", "onConnectionChange()[" + peerConnectionPair.first + "] - newState=" + newState);
+        if (newState == PeerConnection.PeerConnectionState.CONNECTED) {
+            getModule().latencyTracer.record(peerConnectionPair.first, WebRTCLatencyTracer.CONNECTION_CONNECTED);
+        }
         final WritableMap params = Arguments.createMap();
         params.putString("valueTag", peerConnectionPair.first);
         params.putString("connectionState", peerConnectionStateStringValue(newState));
@@ -102,10 +119,30 @@ final class WebRTCPeerConnectionObserver implements PeerConnection.Observer {
     public void onIceConnectionChange(@NonNull final PeerConnection.IceConnectionState newIceConnectionState) {
         if (peerConnectionPair == null) return;
         Log.d("WebRTCModule", "onIceConnectionChange()[" + peerConnectionPair.first + "] - newIceConnectionState=" + newIceConnectionState);
+        switch (newIceConnectionState) {
+            case CHECKING:
+                getModule().latencyTracer.record(peerConnectionPair.first, WebRTCLatencyTracer.ICE_CHECKING);
+                break;
+            case CONNECTED:
+            case COMPLETED:
+                getModule().latencyTracer.record(peerConnectionPair.first, WebRTCLatencyTracer.ICE_CONNECTED);
+                break;
+            default:
+                break;
+        }
         final WritableMap params = Arguments.createMap();
         params.putString("valueTag", peerConnectionPair.first);
         params.putString("iceConnectionState", iceConnectionStateStringValue(newIceConnectionState));
         sendDeviceEvent("peerConnectionIceConnectionChanged", params);
+        final WebRTCIceRecovery recovery = iceRecovery;
+        if (recovery != null) {
+            // 復旧処理に任せ、復旧を諦めた場合のみ閉じる
+            recovery.onIceConnectionChange(newIceConnectionState);
+            if (newIceConnectionState == PeerConnection.IceConnectionState.CLOSED) {
+                closeAndFinish();
+            }
+            return;
+        }
         switch (newIceConnectionState) {
             case NEW:
                 break;
@@ -135,6 +172,10 @@ final class WebRTCPeerConnectionObserver implements PeerConnection.Observer {
     public void onIceGatheringChange(PeerConnection.IceGatheringState iceGatheringState) {
         if (peerConnectionPair == null) return;
         Log.d("WebRTCModule", "onIceGatheringChange()[" + peerConnectionPair.first + "] - iceGatheringState=" + iceGatheringState);
+        // 収集状態の変化より先に、まとめている ICE candidate を通知する
+        synchronized (candidateLock) {
+            flushPendingCandidates();
+        }
         final WritableMap params = Arguments.createMap();
         params.putString("valueTag", peerConnectionPair.first);
         params.putString("iceGatheringState", iceGatheringStateStringValue(iceGatheringState));
@@ -145,10 +186,23 @@ final class WebRTCPeerConnectionObserver implements PeerConnection.Observer {
     public void onIceCandidate(IceCandidate iceCandidate) {
         if (peerConnectionPair == null) return;
         Log.d("WebRTCModule", "onIceCandidate()[" + peerConnectionPair.first + "] - iceCandidate=" + iceCandidate);
+        getModule().latencyTracer.record(peerConnectionPair.first, WebRTCLatencyTracer.FIRST_LOCAL_CANDIDATE);
         final WritableMap candidate = Arguments.createMap();
         candidate.putString("candidate", iceCandidate.sdp);
         candidate.putInt("sdpMLineIndex", iceCandidate.sdpMLineIndex);
         candidate.putString("sdpMid", iceCandidate.sdpMid);
+
+        synchronized (candidateLock) {
+            if (candidateFlushIntervalMs > 0) {
+                if (pendingCandidates == null) {
+                    pendingCandidates = Arguments.createArray();
+                    getModule().getWorkerHandler().postDelayed(candidateFlushTask, candidateFlushIntervalMs);
+                }
+                pendingCandidates.pushMap(candidate);
+                return;
+            }
+        }
+
         final WritableMap params = Arguments.createMap();
         params.putString("valueTag", peerConnectionPair.first);
         params.putMap("candidate", candidate);
@@ -168,14 +222,14 @@ final class WebRTCPeerConnectionObserver implements PeerConnection.Observer {
         if (peerConnectionPair == null) return;
         Log.d("WebRTCModule", "onAddStream()[" + peerConnectionPair.first + "] - mediaStream=" + mediaStream);
         final WebRTCModule module = getModule();
-        module.repository.streams.add(mediaStream.getId(), module.createNewValueTag(), mediaStream);
+        module.repository.streams.add(mediaStream.getId(), mediaStream);
 
         // XXX: Preserved Video Trackについては現在無視しているがこれも管理したほうが良いか？
         for (final MediaStreamTrack track : mediaStream.videoTracks) {
-            module.repository.tracks.add(track.id(), module.createNewValueTag(), track);
+            module.repository.tracks.add(track.id(), track);
         }
         for (final MediaStreamTrack track : mediaStream.audioTracks) {
-            module.repository.tracks.add(track.id(), module.createNewValueTag(), track);
+            module.repository.tracks.add(track.id(), track);
         }
         // JS側へのイベント通知は無し (Unified Plan移行につき、旧Plan BのStreamベースのdeprecatedイベント通知は使用しない)
         // XXX: libwebrtc AndroidにonRemoveTrack()が存在しないため、現状JS側がstream/trackをremoveするのに適したイベントが一切存在しない状態になってしまっている
@@ -198,17 +252,17 @@ final class WebRTCPeerConnectionObserver implements PeerConnection.Observer {
         if (peerConnectionPair == null) return;
         Log.d("WebRTCModule", "onAddTrack()[" + peerConnectionPair.first + "] - receiver=" + receiver);
         final WebRTCModule module = getModule();
-        final Pair<String, RtpReceiver> receiverPair = new Pair<>(module.createNewValueTag(), receiver);
-        module.repository.receivers.add(receiver.id(), module.createNewValueTag(), receiver);
+        module.repository.setRtpParametersOwner(module.repository.receivers.add(receiver.id(), receiver), peerConnectionPair.first);
         final MediaStreamTrack track = receiver.track();
         if (track != null) {
-            module.repository.tracks.add(track.id(), module.createNewValueTag(), track);
+            module.repository.tracks.add(track.id(), track);
+            module.latencyTracer.associateTrack(track.id(), peerConnectionPair.first);
         }
         module.repository.setStreamIdsForReceiver(receiver, mediaStreams);
 
         final WritableMap params = Arguments.createMap();
         params.putString("valueTag", peerConnectionPair.first);
-        params.putMap("receiver", rtpReceiverJsonValue(receiver, module.repository));
+        params.putMap("receiver", rtpReceiverJsonValue(receiver, module.repository, !module.isLazyRtpParametersEnabled));
         sendDeviceEvent("peerConnectionAddedReceiver", params);
     }
 
@@ -225,7 +279,7 @@ final class WebRTCPeerConnectionObserver implements PeerConnection.Observer {
 
         final WritableMap params = Arguments.createMap();
         params.putString("valueTag", peerConnectionPair.first);
-        params.putMap("receiver", rtpReceiverJsonValue(receiver, module.repository));
+        params.putMap("receiver", rtpReceiverJsonValue(receiver, module.repository, !module.isLazyRtpParametersEnabled));
         sendDeviceEvent("peerConnectionRemovedReceiver", params);
     }
 
@@ -234,25 +288,26 @@ final class WebRTCPeerConnectionObserver implements PeerConnection.Observer {
         if (peerConnectionPair == null) return;
         Log.d("WebRTCModule", "onTrack()[" + peerConnectionPair.first + "] - transceiver=" + transceiver);
         final WebRTCModule module = getModule();
-        module.repository.transceivers.add(transceiver.getMid(), module.createNewValueTag(), transceiver);
+        module.repository.transceivers.add(transceiver.getMid(), transceiver);
         final RtpSender sender = transceiver.getSender();
         final MediaStreamTrack senderTrack = sender.track();
         final RtpReceiver receiver = transceiver.getReceiver();
         final MediaStreamTrack receiverTrack = receiver.track();
-        module.repository.senders.add(sender.id(), module.createNewValueTag(), sender);
-        module.repository.receivers.add(receiver.id(), module.createNewValueTag(), receiver);
+        module.repository.setRtpParametersOwner(module.repository.senders.add(sender.id(), sender), peerConnectionPair.first);
+        module.repository.setRtpParametersOwner(module.repository.receivers.add(receiver.id(), receiver), peerConnectionPair.first);
         if (senderTrack != null) {
-            module.repository.tracks.add(senderTrack.id(), module.createNewValueTag(), senderTrack);
+            module.repository.tracks.add(senderTrack.id(), senderTrack);
         }
         if (receiverTrack != null) {
-            module.repository.tracks.add(receiverTrack.id(), module.createNewValueTag(), receiverTrack);
+            module.repository.tracks.add(receiverTrack.id(), receiverTrack);
+            module.latencyTracer.associateTrack(receiverTrack.id(), peerConnectionPair.first);
         }
         // XXX: 本来であればここで sender.streams() や receiver.streams() を使ってstreamIdsを取得し、repository.setStreamIds(...)とする必要がある
         //      しかしながら現在libwebrtcに sender.streams() や receiver.streams() の実装がないため実現不能
 
         final WritableMap params = Arguments.createMap();
         params.putString("valueTag", peerConnectionPair.first);
-        params.putMap("transceiver", rtpTransceiverJsonValue(transceiver, module.repository));
+        params.putMap("transceiver", rtpTransceiverJsonValue(transceiver, module.repository, !module.isLazyRtpParametersEnabled));
         sendDeviceEvent("peerConnectionStartTransceiver", params);
     }
 
@@ -269,7 +324,7 @@ final class WebRTCPeerConnectionObserver implements PeerConnection.Observer {
         final Pair<String, DataChannel> dataChannelPair = new Pair<>(dataChannelValueTag, dataChannel);
         observer.dataChannelPair = dataChannelPair;
         dataChannel.registerObserver(observer);
-        module.repository.addDataChannel(dataChannelPair);
+        module.repository.addDataChannel(dataChannelPair, observer);
         sendDeviceEvent("peerConnectionOnDataChannel", params);
     }
 
@@ -277,6 +332,7 @@ final class WebRTCPeerConnectionObserver implements PeerConnection.Observer {
     public void onRenegotiationNeeded() {
         if (peerConnectionPair == null) return;
         Log.d("WebRTCModule", "onRenegotiationNeeded()[" + peerConnectionPair.first + "]");
+        getModule().repository.invalidateRtpParametersOf(peerConnectionPair.first);
         final WritableMap params = Arguments.createMap();
         params.putString("valueTag", peerConnectionPair.first);
         sendDeviceEvent("peerConnectionShouldNegotiate", params);
@@ -284,4 +340,111 @@ final class WebRTCPeerConnectionObserver implements PeerConnection.Observer {
 
     //endregion
 
+
+    //region ICE recovery
+
+    /**
+     * ICE の接続が切れた場合の復旧方針を設定します。null を指定すると復旧は行わず、従来通り切れた時点で閉じます。
+     */
+    void setIceRecoveryPolicy(@Nullable final WebRTCIceRecovery.Policy policy) {
+        final Pair<String, PeerConnection> pair = peerConnectionPair;
+        final WebRTCIceRecovery oldRecovery = iceRecovery;
+        if (oldRecovery != null) {
+            oldRecovery.cancel();
+        }
+        if (policy == null || pair == null) {
+            iceRecovery = null;
+            return;
+        }
+        iceRecovery = new WebRTCIceRecovery(reactContext, getModule().getWorkerHandler(),
+                pair.first, pair.second, policy, this::closeAndFinish);
+    }
+
+    //endregion
+
+    //region ICE candidate batching
+
+    /**
+     * onIceCandidate() と onIceGatheringChange() は signaling スレッド、タイマーはワーカースレッド、
+     * 設定の変更はモジュールのスレッドから行われるため、以下のフィールドはすべて candidateLock で保護します。
+     */
+    private final Object candidateLock = new Object();
+    private int candidateFlushIntervalMs = 0;
+    @Nullable
+    private WritableArray pendingCandidates = null;
+
+    private final Runnable candidateFlushTask = () -> {
+        synchronized (candidateLock) {
+            flushPendingCandidates();
+        }
+    };
+
+    /**
+     * 収集した ICE candidate を flushIntervalMs の間まとめて、`peerConnectionGotICECandidates` イベントで通知するようにします。
+     * 0 を指定すると従来通り 1 つごとに `peerConnectionGotICECandidate` イベントで通知します。
+     * その際、未通知の ICE candidate があれば即座に通知します。
+     * ICE の収集状態が変化した場合も、`peerConnectionIceGatheringChanged` イベントの前に即座に通知します。
+     */
+    void setIceCandidateBatching(final int flushIntervalMs) {
+        synchronized (candidateLock) {
+            flushPendingCandidates();
+            candidateFlushIntervalMs = Math.max(0, flushIntervalMs);
+        }
+    }
+
+    /**
+     * candidateLock を取得した状態で呼び出してください。
+     */
+    private void flushPendingCandidates() {
+        if (pendingCandidates == null) return;
+        final WritableArray candidates = pendingCandidates;
+        pendingCandidates = null;
+        getModule().getWorkerHandler().removeCallbacks(candidateFlushTask);
+        final Pair<String, PeerConnection> pair = peerConnectionPair;
+        if (pair == null) return;
+        final WritableMap params = Arguments.createMap();
+        params.putString("valueTag", pair.first);
+        params.putArray("candidates", candidates);
+        sendDeviceEvent("peerConnectionGotICECandidates", params);
+    }
+
+    //endregion
+
+    //region Remote ICE candidates
+
+    /**
+     * リモートの SDP が設定される前に受け取った ICE candidate です。remoteCandidateLock で保護します。
+     */
+    private final Object remoteCandidateLock = new Object();
+    @NonNull
+    private final List<IceCandidate> pendingRemoteCandidates = new ArrayList<>();
+    private boolean isRemoteDescriptionSet = false;
+
+    /**
+     * リモートの SDP がまだ設定されていない場合、ICE candidate をキューに追加して true を返します。
+     * 設定済みの場合は何もせずに false を返すので、呼び出し側で PeerConnection に追加してください。
+     */
+    boolean enqueueRemoteCandidatesIfNeeded(@NonNull final List<IceCandidate> candidates) {
+        synchronized (remoteCandidateLock) {
+            if (isRemoteDescriptionSet) return false;
+            pendingRemoteCandidates.addAll(candidates);
+            return true;
+        }
+    }
+
+    /**
+     * リモートの SDP が設定されたときに呼び出してください。キューに溜まっていた ICE candidate を返します。
+     */
+    @NonNull
+    List<IceCandidate> onRemoteDescriptionSet() {
+        synchronized (remoteCandidateLock) {
+            isRemoteDescriptionSet = true;
+            final List<IceCandidate> candidates = new ArrayList<>(pendingRemoteCandidates);
+            pendingRemoteCandidates.clear();
+            return candidates;
+        }
+    }
+
+    //endregion
+
 }
@@ -2,8 +2,11 @@ package jp.shiguredo.react.webrtckit;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.NonNull;
+import android.os.SystemClock;
 import android.util.Pair;
 
+import com.facebook.react.bridge.WritableMap;
+
 import org.webrtc.DataChannel;
 import org.webrtc.MediaStream;
 import org.webrtc.MediaStreamTrack;
@@ -12,6 +15,7 @@ import org.webrtc.RtpParameters;
 import org.webrtc.RtpReceiver;
 import org.webrtc.RtpSender;
 import org.webrtc.RtpTransceiver;
+import org.webrtc.VideoSource;
 import org.webrtc.VideoTrack;
 
 import java.util.ArrayList;
@@ -20,28 +24,86 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.mediaStreamTrackDump;
+import static jp.shiguredo.react.webrtckit.WebRTCConverter.rtpParametersJsonValue;
 import static jp.shiguredo.react.webrtckit.WebRTCConverter.rtpTransceiverDump;
 
 /**
  * WebRTCモジュールが使用するすべてのWebRTC関連のオブジェクト (PeerConnection, MediaStream, MediaStreamTrack等) を管理するリポジトリです。
- *
- * XXX: 現状一切同期処理を行っていないので、複数スレッドから同時に触られると壊れる可能性が高いです。
- *      同期ロックが必要になった場合追加してください。
+ * <p>
+ * スレッドモデル:
+ * このリポジトリは React Native の native modules スレッド (ReactMethod の呼び出し) と
+ * libwebrtc の signaling スレッド (PeerConnection.Observer / DataChannel.Observer のコールバック) の両方から同時に読み書きされます。
+ * リポジトリ全体を覆うロックは取らず、すべてのマップを ConcurrentHashMap にして、各操作を個別にスレッドセーフにしています。
+ * DualKeyMap は ID・valueTag・値を 1 つのエントリにまとめて両方のインデックスに登録し、書き込みは DualKeyMap ごとのロックで直列化します。
+ * 読み込みは ID と valueTag のどちらによるものもロックを取りません。
+ * いずれも 1 回の参照でエントリ全体を取得するため、片方のキーだけが登録された中途半端な状態が見えることはありません。
+ * ただし複数の操作をまたいだ一貫性 (例えば get してから remove する間に別スレッドが変更する) は保証しないので、
+ * 呼び出し側は取得した値が null になり得ることを前提にしてください。
  */
 final class WebRTCRepository {
 
+    //region Handle
+
+    /**
+     * valueTag の元になる handle を発行します。
+     * handle はモジュール内で一意な単調増加の整数で、JS 側には 10 進数の文字列として渡します。
+     * UUID と異なり SecureRandom を使わず、文字列のハッシュ計算も不要なため、
+     * 多数のトラックが一度に追加される場合でも signaling スレッドの負荷を抑えられます。
+     */
+    static final class HandleAllocator {
+        static final long INVALID_HANDLE = 0;
+
+        private final AtomicLong lastHandle = new AtomicLong(INVALID_HANDLE);
+
+        long next() {
+            return lastHandle.incrementAndGet();
+        }
+    }
+
+    final HandleAllocator handles = new HandleAllocator();
+
+    /**
+     * 新しい valueTag を発行します。
+     */
+    @NonNull
+    String createNewValueTag() {
+        return valueTagOf(handles.next());
+    }
+
+    @NonNull
+    static String valueTagOf(final long handle) {
+        return Long.toString(handle);
+    }
+
+    /**
+     * valueTag を handle に変換します。handle の形式でない場合は INVALID_HANDLE を返します。
+     */
+    static long handleOf(@Nullable final String valueTag) {
+        if (valueTag == null) return HandleAllocator.INVALID_HANDLE;
+        try {
+            return Long.parseLong(valueTag);
+        } catch (final NumberFormatException e) {
+            return HandleAllocator.INVALID_HANDLE;
+        }
+    }
+
+    //endregion
+
 
     //region PeerConnection
 
     /**
-     * Key is valueTag, Value is PeerConnection.
+     * Key is valueTag, Value is a pair of the PeerConnection and the observer registered to it.
      */
-    private final Map<String, PeerConnection> peerConnectionMap = new HashMap<>();
+    private final Map<String, Pair<PeerConnection, WebRTCPeerConnectionObserver>> peerConnectionMap = new ConcurrentHashMap<>();
 
-    void addPeerConnection(@NonNull final Pair<String, PeerConnection> peerConnectionPair) {
-        peerConnectionMap.put(peerConnectionPair.first, peerConnectionPair.second);
+    void addPeerConnection(@NonNull final Pair<String, PeerConnection> peerConnectionPair,
+                           @NonNull final WebRTCPeerConnectionObserver observer) {
+        peerConnectionMap.put(peerConnectionPair.first, new Pair<>(peerConnectionPair.second, observer));
     }
 
     void removePeerConnectionByValueTag(@Nullable final String valueTag) {
@@ -49,6 +111,8 @@ final class WebRTCRepository {
             return;
         }
         peerConnectionMap.remove(valueTag);
+        removeRtpParametersOf(valueTag);
+        removeCodecPreferencesOf(valueTag);
     }
 
     @Nullable
@@ -56,7 +120,17 @@ final class WebRTCRepository {
         if (valueTag == null) {
             return null;
         }
-        return peerConnectionMap.get(valueTag);
+        final Pair<PeerConnection, WebRTCPeerConnectionObserver> entry = peerConnectionMap.get(valueTag);
+        return (entry == null) ? null : entry.first;
+    }
+
+    @Nullable
+    WebRTCPeerConnectionObserver getPeerConnectionObserverByValueTag(@Nullable final String valueTag) {
+        if (valueTag == null) {
+            return null;
+        }
+        final Pair<PeerConnection, WebRTCPeerConnectionObserver> entry = peerConnectionMap.get(valueTag);
+        return (entry == null) ? null : entry.second;
     }
 
     @NonNull
@@ -65,7 +139,40 @@ final class WebRTCRepository {
             @NonNull
             @Override
             public Iterator<PeerConnection> iterator() {
-                return peerConnectionMap.values().iterator();
+                final Iterator<Pair<PeerConnection, WebRTCPeerConnectionObserver>> iterator = peerConnectionMap.values().iterator();
+                return new Iterator<PeerConnection>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public PeerConnection next() {
+                        return iterator.next().first;
+                    }
+                };
+            }
+        };
+    }
+
+    @NonNull
+    Iterable<WebRTCPeerConnectionObserver> allPeerConnectionObservers() {
+        return new Iterable<WebRTCPeerConnectionObserver>() {
+            @NonNull
+            @Override
+            public Iterator<WebRTCPeerConnectionObserver> iterator() {
+                final Iterator<Pair<PeerConnection, WebRTCPeerConnectionObserver>> iterator = peerConnectionMap.values().iterator();
+                return new Iterator<WebRTCPeerConnectionObserver>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public WebRTCPeerConnectionObserver next() {
+                        return iterator.next().second;
+                    }
+                };
             }
         };
     }
@@ -75,24 +182,42 @@ final class WebRTCRepository {
 
     //region Stream
 
-    final DualKeyMap<MediaStream> streams = new DualKeyMap<>();
+    final DualKeyMap<MediaStream> streams = new DualKeyMap<>(handles);
 
     //endregion
 
 
     //region Track
 
-    final DualKeyMap<MediaStreamTrack> tracks = new DualKeyMap<>();
+    final DualKeyMap<MediaStreamTrack> tracks = new DualKeyMap<>(handles);
     /**
-     * Key is id, Value is aspectRatio.
+     * Key is id of the local video track, Value is the VideoSource of the track.
+     * libwebrtc の VideoTrack からは VideoSource を取得できないため、getUserMedia() で生成したときに保存しておく。
      */
-    private final Map<String, Double> trackAspectRatioMap = new HashMap<>();
+    private final Map<String, VideoSource> trackVideoSourceMap = new ConcurrentHashMap<>();
 
-    void setVideoTrackAspectRatio(@NonNull final VideoTrack videoTrack, double aspectRatio) {
+    void setVideoSourceForTrack(@NonNull final VideoTrack videoTrack, @NonNull final VideoSource videoSource) {
         if (!tracks.containsId(videoTrack.id())) {
             return;
         }
-        trackAspectRatioMap.put(videoTrack.id(), aspectRatio);
+        trackVideoSourceMap.put(videoTrack.id(), videoSource);
+    }
+
+    @Nullable
+    VideoSource getVideoSourceByTrack(@NonNull final VideoTrack videoTrack) {
+        return trackVideoSourceMap.get(videoTrack.id());
+    }
+
+    /**
+     * 指定された VideoSource を使うトラックの対応を削除します。キャプチャを停止して VideoSource を破棄したときに呼び出してください。
+     */
+    void removeVideoSource(@NonNull final VideoSource videoSource) {
+        final Iterator<VideoSource> iterator = trackVideoSourceMap.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == videoSource) {
+                iterator.remove();
+            }
+        }
     }
 
     //endregion
@@ -100,24 +225,24 @@ final class WebRTCRepository {
 
     //region RTP Sender
 
-    final DualKeyMap<RtpSender> senders = new DualKeyMap<>();
+    final DualKeyMap<RtpSender> senders = new DualKeyMap<>(handles);
 
     /**
      * Key is id, Value is associated stream ids.
      */
-    private final Map<String, List<String>> senderStreamIdsMap = new HashMap<>();
+    private final Map<String, List<String>> senderStreamIdsMap = new ConcurrentHashMap<>();
 
     @Nullable
     List<String> getStreamIdsForSender(@NonNull final RtpSender sender) {
-        return receiverStreamIdsMap.get(sender.id());
+        return senderStreamIdsMap.get(sender.id());
     }
 
     void setStreamIdsForSender(@NonNull final RtpSender sender, @Nullable final List<String> streamIds) {
         if (streamIds == null || streamIds.size() == 0) {
-            receiverStreamIdsMap.remove(sender.id());
+            senderStreamIdsMap.remove(sender.id());
             return;
         }
-        receiverStreamIdsMap.put(sender.id(), streamIds);
+        senderStreamIdsMap.put(sender.id(), Collections.unmodifiableList(new ArrayList<>(streamIds)));
     }
 
     void setStreamIdsForSender(@NonNull final RtpSender sender, @Nullable final MediaStream[] mediaStreams) {
@@ -137,11 +262,11 @@ final class WebRTCRepository {
 
     //region RTP Receiver
 
-    final DualKeyMap<RtpReceiver> receivers = new DualKeyMap<>();
+    final DualKeyMap<RtpReceiver> receivers = new DualKeyMap<>(handles);
     /**
      * Key is id, Value is associated stream ids.
      */
-    private final Map<String, List<String>> receiverStreamIdsMap = new HashMap<>();
+    private final Map<String, List<String>> receiverStreamIdsMap = new ConcurrentHashMap<>();
 
     @Nullable
     List<String> getStreamIdsForReceiver(@NonNull final RtpReceiver receiver) {
@@ -161,7 +286,7 @@ final class WebRTCRepository {
             receiverStreamIdsMap.remove(receiver.id());
             return;
         }
-        receiverStreamIdsMap.put(receiver.id(), streamIds);
+        receiverStreamIdsMap.put(receiver.id(), Collections.unmodifiableList(streamIds));
     }
 
     //endregion
@@ -169,38 +294,196 @@ final class WebRTCRepository {
 
     //region RTP Transceiver
 
-    final DualKeyMap<RtpTransceiver> transceivers = new DualKeyMap<>();
+    final DualKeyMap<RtpTransceiver> transceivers = new DualKeyMap<>(handles);
+    /**
+     * Key is id of the receiver of the transceiver, Value is codecs in preferred order.
+     * XXX: mid は PeerConnection ごとに採番されて重複するため、トランシーバーごとに一意な receiver の id をキーにする
+     */
+    private final Map<String, List<WebRTCCodecPreferences.Codec>> transceiverCodecPreferencesMap = new ConcurrentHashMap<>();
+
+    void setCodecPreferences(@NonNull final RtpTransceiver transceiver, @NonNull final List<WebRTCCodecPreferences.Codec> codecs) {
+        final String receiverId = transceiver.getReceiver().id();
+        if (codecs.isEmpty()) {
+            transceiverCodecPreferencesMap.remove(receiverId);
+            return;
+        }
+        transceiverCodecPreferencesMap.put(receiverId, Collections.unmodifiableList(new ArrayList<>(codecs)));
+    }
+
+    /**
+     * Key is valueTag of the PeerConnection and id of the sender joined with "/", Value is codecs in preferred order.
+     * addTrack() で生成したトランシーバーは onTrack() が呼ばれるまで transceivers に登録されないため、sender で指定できるようにする。
+     */
+    private final Map<String, List<WebRTCCodecPreferences.Codec>> senderCodecPreferencesMap = new ConcurrentHashMap<>();
+
+    void setCodecPreferences(@NonNull final String peerConnectionValueTag,
+                             @NonNull final RtpSender sender,
+                             @NonNull final List<WebRTCCodecPreferences.Codec> codecs) {
+        final String key = senderCodecPreferencesKey(peerConnectionValueTag, sender.id());
+        if (codecs.isEmpty()) {
+            senderCodecPreferencesMap.remove(key);
+            return;
+        }
+        senderCodecPreferencesMap.put(key, Collections.unmodifiableList(new ArrayList<>(codecs)));
+    }
+
+    @NonNull
+    private static String senderCodecPreferencesKey(@NonNull final String peerConnectionValueTag, @NonNull final String senderId) {
+        return peerConnectionValueTag + "/" + senderId;
+    }
+
+    /**
+     * 指定された PeerConnection のトランシーバーに設定されたコーデックの優先順位を、mid をキーにして返します。
+     * トランシーバーの mid がまだ決まっていない場合 (最初の offer) は、sdp の a=msid から送信するトラックのセクションを探します。
+     */
+    @NonNull
+    Map<String, List<WebRTCCodecPreferences.Codec>> getCodecPreferencesByMid(@NonNull final String peerConnectionValueTag,
+                                                                            @NonNull final PeerConnection peerConnection,
+                                                                            @NonNull final String sdp) {
+        if (transceiverCodecPreferencesMap.isEmpty() && senderCodecPreferencesMap.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, List<WebRTCCodecPreferences.Codec>> preferences = new HashMap<>();
+        Map<String, String> midsByTrackId = null;
+        for (final RtpTransceiver transceiver : peerConnection.getTransceivers()) {
+            final RtpSender sender = transceiver.getSender();
+            List<WebRTCCodecPreferences.Codec> codecs = transceiverCodecPreferencesMap.get(transceiver.getReceiver().id());
+            if (codecs == null) {
+                codecs = senderCodecPreferencesMap.get(senderCodecPreferencesKey(peerConnectionValueTag, sender.id()));
+            }
+            if (codecs == null) continue;
+            String mid = transceiver.getMid();
+            if (mid == null) {
+                final MediaStreamTrack track = sender.track();
+                if (track == null) continue;
+                if (midsByTrackId == null) {
+                    midsByTrackId = WebRTCCodecPreferences.midsByTrackId(sdp);
+                }
+                mid = midsByTrackId.get(track.id());
+                if (mid == null) continue;
+            }
+            preferences.put(mid, codecs);
+        }
+        return preferences;
+    }
+
+    /**
+     * 指定された PeerConnection の sender に設定されたコーデックの優先順位を削除します。
+     */
+    private void removeCodecPreferencesOf(@NonNull final String peerConnectionValueTag) {
+        final String prefix = peerConnectionValueTag + "/";
+        final Iterator<String> iterator = senderCodecPreferencesMap.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().startsWith(prefix)) {
+                iterator.remove();
+            }
+        }
+    }
 
     //endregion
 
 
     //region RTP Parameters
 
+    /**
+     * RtpParameters のキャッシュの有効期間です。
+     * getParameters() は JNI 越しに native のパラメーターをコピーするため、短時間に連続して呼び出される場合はキャッシュを返します。
+     */
+    private static final long RTP_PARAMETERS_CACHE_TTL_MS = 500;
+
+    /**
+     * Key is valueTag of the sender or receiver, Value is a pair of the cached time (SystemClock.elapsedRealtime()) and RtpParameters.
+     * キャッシュした RtpParameters は変更されないよう、このクラスの外には渡しません。
+     */
+    private final Map<String, Pair<Long, RtpParameters>> rtpParametersCache = new ConcurrentHashMap<>();
+    /**
+     * Key is valueTag of the sender or receiver, Value is valueTag of the PeerConnection which owns it.
+     * PeerConnection ごとにキャッシュを破棄するために使います。
+     */
+    private final Map<String, String> rtpParametersOwnerMap = new ConcurrentHashMap<>();
+
+    /**
+     * valueTag に対応する RtpSender または RtpReceiver の RtpParameters を JS に渡す形式で返します。
+     * 直近に取得した RtpParameters がキャッシュされていればそれを変換して返します。
+     */
     @Nullable
-    RtpParameters getRtpParametersByValueTag(@NonNull final String valueTag) {
-        for (final RtpSender sender : senders.all()) {
-            if (valueTag.equals(senders.getValueTag(sender.id()))) {
-                return sender.getParameters();
-            }
+    WritableMap getRtpParametersJsonValueByValueTag(@NonNull final String valueTag) {
+        final RtpParameters parameters = getRtpParametersByValueTag(valueTag);
+        return (parameters == null) ? null : rtpParametersJsonValue(parameters);
+    }
+
+    @Nullable
+    private RtpParameters getRtpParametersByValueTag(@NonNull final String valueTag) {
+        final long now = SystemClock.elapsedRealtime();
+        final Pair<Long, RtpParameters> cached = rtpParametersCache.get(valueTag);
+        if (cached != null && now - cached.first < RTP_PARAMETERS_CACHE_TTL_MS) {
+            return cached.second;
         }
-        for (final RtpReceiver receiver : receivers.all()) {
-            if (valueTag.equals(receivers.getValueTag(receiver.id()))) {
-                return receiver.getParameters();
+        final RtpParameters parameters;
+        final RtpSender sender = senders.getByValueTag(valueTag);
+        if (sender != null) {
+            parameters = sender.getParameters();
+        } else {
+            final RtpReceiver receiver = receivers.getByValueTag(valueTag);
+            if (receiver == null) {
+                return null;
             }
+            parameters = receiver.getParameters();
         }
-        return null;
+        rtpParametersCache.put(valueTag, new Pair<>(now, parameters));
+        return parameters;
+    }
+
+    /**
+     * 指定された sender または receiver の RtpParameters のキャッシュを破棄します。
+     */
+    void invalidateRtpParameters(@Nullable final String valueTag) {
+        if (valueTag == null) return;
+        rtpParametersCache.remove(valueTag);
     }
 
+    /**
+     * sender または receiver を所有する PeerConnection を記録します。
+     */
+    void setRtpParametersOwner(@Nullable final String valueTag, @NonNull final String peerConnectionValueTag) {
+        if (valueTag == null) return;
+        rtpParametersOwnerMap.put(valueTag, peerConnectionValueTag);
+    }
+
+    /**
+     * sender または receiver を所有する PeerConnection の valueTag を返します。
+     */
     @Nullable
-    RtpParameters.Encoding getRtpEncodingParametersByValueTag(@NonNull final String valueTag, long ssrc) {
-        final RtpParameters rtpParameters = getRtpParametersByValueTag(valueTag);
-        if (rtpParameters == null) return null;
-        for (final RtpParameters.Encoding encoding : rtpParameters.encodings) {
-            if (encoding.ssrc != null && encoding.ssrc == ssrc) {
-                return encoding;
+    String getOwnerPeerConnectionValueTag(@Nullable final String valueTag) {
+        if (valueTag == null) return null;
+        return rtpParametersOwnerMap.get(valueTag);
+    }
+
+    /**
+     * 指定された PeerConnection が所有する sender と receiver の RtpParameters のキャッシュを破棄します。
+     * 再ネゴシエーション時に呼び出してください。所有者が記録されていないものも念のため破棄します。
+     */
+    void invalidateRtpParametersOf(@NonNull final String peerConnectionValueTag) {
+        final Iterator<String> iterator = rtpParametersCache.keySet().iterator();
+        while (iterator.hasNext()) {
+            final String owner = rtpParametersOwnerMap.get(iterator.next());
+            if (owner == null || owner.equals(peerConnectionValueTag)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 指定された PeerConnection が所有する sender と receiver の記録とキャッシュを削除します。
+     */
+    private void removeRtpParametersOf(@NonNull final String peerConnectionValueTag) {
+        invalidateRtpParametersOf(peerConnectionValueTag);
+        final Iterator<String> iterator = rtpParametersOwnerMap.values().iterator();
+        while (iterator.hasNext()) {
+            if (peerConnectionValueTag.equals(iterator.next())) {
+                iterator.remove();
             }
         }
-        return null;
     }
 
     //endregion
@@ -208,10 +491,15 @@ final class WebRTCRepository {
 
     //region Data Channel
 
-    private final Map<String, DataChannel> dataChannelMap = new HashMap<>();
+    /**
+     * Key is valueTag, Value is a pair of the DataChannel and the observer registered to it.
+     * DataChannel と observer を 1 つのエントリにまとめて、両者の登録・削除を不可分にしています。
+     */
+    private final Map<String, Pair<DataChannel, WebRTCDataChannelObserver>> dataChannelMap = new ConcurrentHashMap<>();
 
-    void addDataChannel(@NonNull final Pair<String, DataChannel> dataChannelPair) {
-        dataChannelMap.put(dataChannelPair.first, dataChannelPair.second);
+    void addDataChannel(@NonNull final Pair<String, DataChannel> dataChannelPair,
+                        @NonNull final WebRTCDataChannelObserver observer) {
+        dataChannelMap.put(dataChannelPair.first, new Pair<>(dataChannelPair.second, observer));
     }
 
     void removeDataChannelByValueTag(@Nullable final String valueTag) {
@@ -226,7 +514,39 @@ final class WebRTCRepository {
         if (valueTag == null) {
             return null;
         }
-        return dataChannelMap.get(valueTag);
+        final Pair<DataChannel, WebRTCDataChannelObserver> entry = dataChannelMap.get(valueTag);
+        return (entry == null) ? null : entry.first;
+    }
+
+    @Nullable
+    WebRTCDataChannelObserver getDataChannelObserverByValueTag(@Nullable final String valueTag) {
+        if (valueTag == null) {
+            return null;
+        }
+        final Pair<DataChannel, WebRTCDataChannelObserver> entry = dataChannelMap.get(valueTag);
+        return (entry == null) ? null : entry.second;
+    }
+
+    @NonNull
+    Iterable<WebRTCDataChannelObserver> allDataChannelObservers() {
+        return new Iterable<WebRTCDataChannelObserver>() {
+            @NonNull
+            @Override
+            public Iterator<WebRTCDataChannelObserver> iterator() {
+                final Iterator<Pair<DataChannel, WebRTCDataChannelObserver>> iterator = dataChannelMap.values().iterator();
+                return new Iterator<WebRTCDataChannelObserver>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public WebRTCDataChannelObserver next() {
+                        return iterator.next().second;
+                    }
+                };
+            }
+        };
     }
 
     //endregion
@@ -242,111 +562,187 @@ final class WebRTCRepository {
         streams.clear();
 
         tracks.clear();
-        trackAspectRatioMap.clear();
+        trackVideoSourceMap.clear();
 
         senders.clear();
+        senderStreamIdsMap.clear();
 
         receivers.clear();
         receiverStreamIdsMap.clear();
 
         transceivers.clear();
+        transceiverCodecPreferencesMap.clear();
+        senderCodecPreferencesMap.clear();
+
+        rtpParametersCache.clear();
+        rtpParametersOwnerMap.clear();
 
         dataChannelMap.clear();
     }
 
+    /**
+     * ID と valueTag の 2 つのキーで値を引けるマップです。
+     * 値は ID・valueTag・値を 1 つにまとめた Entry として両方のインデックスに登録します。
+     * 登録と削除はこの DualKeyMap のロックの中で両方のインデックスを更新するため不可分に行われます。
+     * valueTag 側のインデックスは handle をキーにした ConcurrentHashMap で、すべての ReactMethod から呼ばれる valueTag による読み込みをロックなしで行えるようにしています。
+     * 両方のインデックスは常に同じ Entry を指すので、読み込み中に更新されても一方のインデックスの古いエントリが見えるだけです。
+     * XXX: ConcurrentHashMap.compute() は Android では API Level 24 以上のみのため使っていません。
+     */
     static final class DualKeyMap<V> {
+
+        private static final class Entry<V> {
+            @NonNull
+            final String id;
+            final long handle;
+            /**
+             * JS 側に渡す handle の文字列表現です。登録時に 1 度だけ生成します。
+             */
+            @NonNull
+            final String valueTag;
+            @NonNull
+            final V value;
+
+            Entry(@NonNull final String id, final long handle, @NonNull final V value) {
+                this.id = id;
+                this.handle = handle;
+                this.valueTag = valueTagOf(handle);
+                this.value = value;
+            }
+        }
+
         @NonNull
-        private final Map<String, V> idMap = new HashMap<>();
+        private final HandleAllocator handles;
         @NonNull
-        private final Map<String, String> idToValueTag = new HashMap<>();
+        private final ConcurrentHashMap<String, Entry<V>> idMap = new ConcurrentHashMap<>();
+        /**
+         * Key is handle. 書き込みは this で保護し、読み込みはロックを取りません。
+         */
         @NonNull
-        private final Map<String, String> valueTagToId = new HashMap<>();
+        private final ConcurrentHashMap<Long, Entry<V>> handleMap = new ConcurrentHashMap<>();
+
+        DualKeyMap(@NonNull final HandleAllocator handles) {
+            this.handles = handles;
+        }
 
-        void add(@NonNull final String id, @NonNull final String valueTag, @NonNull final V value) {
+        /**
+         * 値を登録し、その valueTag を返します。
+         * valueTag は新たに登録した場合のみ発行します。
+         */
+        @NonNull
+        String add(@NonNull final String id, @NonNull final V value) {
             // すでに同一のIDで同一のインスタンスが登録されている場合は上書きしないで無視します
             // 同一のIDがすでに登録されていても、インスタンスが別であれば上書きします
             // XXX: ひょっとしたらIDだけ同一なら上書きしないほうがいいかも、というのはAndroidの場合実態はnative側にあって、
             //      Java側のインスタンスはただのラッパーなので、毎回毎回同一のnativeオブジェクトに対して必要に応じてJava側のラッパーが生成される、
             //      すなわちインスタンスは同じIDでも毎回別になる内部実装になっている恐れがあるため。
             //      実際に試してみてダメそうなら調整する。
-            final V oldValue = idMap.get(id);
-            if (oldValue == value) {
-                return;
+            synchronized (this) {
+                final Entry<V> oldEntry = idMap.get(id);
+                if (oldEntry != null && oldEntry.value == value) {
+                    return oldEntry.valueTag;
+                }
+                final Entry<V> newEntry = new Entry<>(id, handles.next(), value);
+                if (oldEntry != null) {
+                    handleMap.remove(oldEntry.handle);
+                }
+                handleMap.put(newEntry.handle, newEntry);
+                idMap.put(id, newEntry);
+                return newEntry.valueTag;
             }
-            idMap.put(id, value);
-            idToValueTag.put(id, valueTag);
-            valueTagToId.put(valueTag, id);
+        }
+
+        @Nullable
+        private Entry<V> getEntryByValueTag(@Nullable final String valueTag) {
+            final long handle = handleOf(valueTag);
+            if (handle == HandleAllocator.INVALID_HANDLE) return null;
+            return handleMap.get(handle);
         }
 
         @Nullable
         String getId(@Nullable final String valueTag) {
-            if (valueTag == null) return null;
-            return valueTagToId.get(valueTag);
+            final Entry<V> entry = getEntryByValueTag(valueTag);
+            return (entry == null) ? null : entry.id;
         }
 
         @Nullable
         String getValueTag(@Nullable final String id) {
             if (id == null) return null;
-            return idToValueTag.get(id);
+            final Entry<V> entry = idMap.get(id);
+            return (entry == null) ? null : entry.valueTag;
         }
 
         boolean containsId(@Nullable final String id) {
             if (id == null) return false;
-            return idToValueTag.containsKey(id);
+            return idMap.containsKey(id);
         }
 
         boolean containsValueTag(@Nullable final String valueTag) {
-            if (valueTag == null) return false;
-            return valueTagToId.containsKey(valueTag);
+            return getEntryByValueTag(valueTag) != null;
         }
 
         @Nullable
         V getById(@Nullable final String id) {
             if (id == null) return null;
-            return idMap.get(id);
+            final Entry<V> entry = idMap.get(id);
+            return (entry == null) ? null : entry.value;
         }
 
         @Nullable
         V getByValueTag(@Nullable final String valueTag) {
-            if (valueTag == null) return null;
-            final String id = valueTagToId.get(valueTag);
-            if (id == null) return null;
-            return idMap.get(id);
+            final Entry<V> entry = getEntryByValueTag(valueTag);
+            return (entry == null) ? null : entry.value;
         }
 
+        /**
+         * 登録されているすべての値を返します。
+         * イテレーション中に他のスレッドから変更されても ConcurrentModificationException は発生しませんが、
+         * その変更が反映されるかどうかは保証されません。
+         */
         @NonNull
         Iterable<V> all() {
             return new Iterable<V>() {
                 @NonNull
                 @Override
                 public Iterator<V> iterator() {
-                    return idMap.values().iterator();
+                    final Iterator<Entry<V>> iterator = idMap.values().iterator();
+                    return new Iterator<V>() {
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+
+                        @Override
+                        public V next() {
+                            return iterator.next().value;
+                        }
+                    };
                 }
             };
         }
 
         void removeById(@Nullable final String id) {
             if (id == null) return;
-            final String valueTag = idToValueTag.get(id);
-            if (valueTag == null) return;
-            idMap.remove(id);
-            idToValueTag.remove(id);
-            valueTagToId.remove(valueTag);
+            synchronized (this) {
+                final Entry<V> entry = idMap.remove(id);
+                if (entry == null) return;
+                handleMap.remove(entry.handle);
+            }
         }
 
         void removeByValueTag(@Nullable final String valueTag) {
-            if (valueTag == null) return;
-            final String id = valueTagToId.get(valueTag);
-            if (id == null) return;
-            idMap.remove(id);
-            idToValueTag.remove(id);
-            valueTagToId.remove(valueTag);
+            final long handle = handleOf(valueTag);
+            if (handle == HandleAllocator.INVALID_HANDLE) return;
+            synchronized (this) {
+                final Entry<V> entry = handleMap.get(handle);
+                if (entry == null) return;
+                handleMap.remove(handle);
+                idMap.remove(entry.id, entry);
+            }
         }
 
-        void clear() {
+        synchronized void clear() {
             idMap.clear();
-            idToValueTag.clear();
-            valueTagToId.clear();
+            handleMap.clear();
         }
 
         /**
@@ -354,9 +750,8 @@ final class WebRTCRepository {
          */
         String dump() {
             final StringBuilder sb = new StringBuilder(" * ID - ValueTag - Value\n");
-            for (final String id : idMap.keySet()) {
-                final String valueTag = idToValueTag.get(id);
-                final V value = idMap.get(id);
+            for (final Entry<V> entry : idMap.values()) {
+                final V value = entry.value;
                 final String valueString;
                 if (value instanceof MediaStreamTrack) {
                     final MediaStreamTrack track = (MediaStreamTrack) value;
@@ -367,7 +762,7 @@ final class WebRTCRepository {
                 } else {
                     valueString = value.toString();
                 }
-                sb.append(String.format(" * %s - %s - %s", id, valueTag, valueString));
+                sb.append(String.format(" * %s - %s - %s", entry.id, entry.valueTag, valueString));
                 sb.append('\n');
             }
             return sb.toString();
@@ -0,0 +1,263 @@
+package jp.shiguredo.react.webrtckit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.os.Handler;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import org.webrtc.PeerConnection;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+import java.util.Map;
+
+/**
+ * PeerConnection の統計情報を一定間隔で取得し、前回の取得結果との差分からビットレート・パケットロス率・フレームレートを計算します。
+ * 計算結果は固定長のリングバッファに保持し、取得ごとに `peerConnectionStatsSample` イベントとして JS 側に通知します。
+ * <p>
+ * getStats() のコールバックは signaling スレッドで呼び出されますが、集計とリングバッファの操作はすべて
+ * コンストラクタで渡された Handler のスレッド上で行います。
+ * <p>
+ * stop() は呼び出したスレッドで即座に停止し、以降 getStats() を呼び出さないことを保証します。
+ * そのため stop() から戻った後であれば PeerConnection を dispose() しても構いません。
+ */
+final class WebRTCStatsSampler {
+
+    static final int DEFAULT_INTERVAL_MS = 1000;
+    static final int DEFAULT_HISTORY_SIZE = 30;
+
+    @NonNull
+    private final ReactContext reactContext;
+    @NonNull
+    private final Handler handler;
+    @NonNull
+    private final String valueTag;
+    @NonNull
+    private final PeerConnection peerConnection;
+    private final int intervalMs;
+
+    //region Ring buffer
+
+    private final int capacity;
+    private final double[] timestamps;
+    private final double[] sendBitrates;
+    private final double[] receiveBitrates;
+    private final double[] packetLossRates;
+    private final double[] framesEncodedPerSecond;
+    private final double[] framesDecodedPerSecond;
+    /**
+     * 次に書き込むインデックス
+     */
+    private int head = 0;
+    /**
+     * 現在保持しているサンプル数
+     */
+    private int count = 0;
+
+    //endregion
+
+    //region Previous counters
+
+    private boolean hasPrevious = false;
+    private double previousTimestampUs = 0;
+    private long previousBytesSent = 0;
+    private long previousBytesReceived = 0;
+    private long previousPacketsReceived = 0;
+    private long previousPacketsLost = 0;
+    private long previousFramesEncoded = 0;
+    private long previousFramesDecoded = 0;
+
+    //endregion
+
+    /**
+     * isRunning と isStopped は lock で保護します。
+     * getStats() も lock を取ったまま呼び出すことで、stop() と getStats() が同時に実行されないようにしています。
+     */
+    @NonNull
+    private final Object lock = new Object();
+    private boolean isRunning = false;
+    /**
+     * 一度 stop() したら再開しません。start() の処理より先に stop() が呼ばれた場合に開始しないためです。
+     */
+    private boolean isStopped = false;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (lock) {
+                if (!isRunning) return;
+                peerConnection.getStats(report -> handler.post(() -> onStatsDelivered(report)));
+                handler.postDelayed(this, intervalMs);
+            }
+        }
+    };
+
+    WebRTCStatsSampler(@NonNull final ReactContext reactContext,
+                       @NonNull final Handler handler,
+                       @NonNull final String valueTag,
+                       @NonNull final PeerConnection peerConnection,
+                       final int intervalMs,
+                       final int historySize) {
+        this.reactContext = reactContext;
+        this.handler = handler;
+        this.valueTag = valueTag;
+        this.peerConnection = peerConnection;
+        this.intervalMs = intervalMs > 0 ? intervalMs : DEFAULT_INTERVAL_MS;
+        this.capacity = historySize > 0 ? historySize : DEFAULT_HISTORY_SIZE;
+        this.timestamps = new double[capacity];
+        this.sendBitrates = new double[capacity];
+        this.receiveBitrates = new double[capacity];
+        this.packetLossRates = new double[capacity];
+        this.framesEncodedPerSecond = new double[capacity];
+        this.framesDecodedPerSecond = new double[capacity];
+    }
+
+    void start() {
+        handler.post(() -> {
+            synchronized (lock) {
+                if (isRunning || isStopped) return;
+                Log.d("WebRTCModule", "WebRTCStatsSampler start()[" + valueTag + "]");
+                isRunning = true;
+            }
+            tick.run();
+        });
+    }
+
+    /**
+     * サンプリングを停止します。Handler のスレッドを待たずに、呼び出したスレッドで停止します。
+     * 停止後に届いた統計情報は破棄されます。
+     */
+    void stop() {
+        Log.d("WebRTCModule", "WebRTCStatsSampler stop()[" + valueTag + "]");
+        synchronized (lock) {
+            isRunning = false;
+            isStopped = true;
+            handler.removeCallbacks(tick);
+        }
+    }
+
+    private boolean isRunning() {
+        synchronized (lock) {
+            return isRunning;
+        }
+    }
+
+    /**
+     * リングバッファに保持しているサンプルを古い順に配列にして、Handler のスレッド上で callback に渡します。
+     */
+    void getHistory(@NonNull final HistoryCallback callback) {
+        handler.post(() -> {
+            final WritableArray json = Arguments.createArray();
+            final int start = (head - count + capacity) % capacity;
+            for (int i = 0; i < count; i++) {
+                json.pushMap(sampleJsonValue((start + i) % capacity));
+            }
+            callback.onHistory(json);
+        });
+    }
+
+    interface HistoryCallback {
+        void onHistory(@NonNull WritableArray history);
+    }
+
+    private void onStatsDelivered(@NonNull final RTCStatsReport report) {
+        if (!isRunning()) return;
+
+        long bytesSent = 0;
+        long bytesReceived = 0;
+        long packetsReceived = 0;
+        long packetsLost = 0;
+        long framesEncoded = 0;
+        long framesDecoded = 0;
+        for (final RTCStats stats : report.getStatsMap().values()) {
+            final Map<String, Object> members = stats.getMembers();
+            switch (stats.getType()) {
+                case "outbound-rtp":
+                    bytesSent += longMember(members, "bytesSent");
+                    framesEncoded += longMember(members, "framesEncoded");
+                    break;
+                case "inbound-rtp":
+                    bytesReceived += longMember(members, "bytesReceived");
+                    packetsReceived += longMember(members, "packetsReceived");
+                    packetsLost += longMember(members, "packetsLost");
+                    framesDecoded += longMember(members, "framesDecoded");
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        final double timestampUs = report.getTimestampUs();
+        if (hasPrevious && timestampUs > previousTimestampUs) {
+            final double seconds = (timestampUs - previousTimestampUs) / 1000000.0;
+            final long deltaPacketsReceived = packetsReceived - previousPacketsReceived;
+            final long deltaPacketsLost = packetsLost - previousPacketsLost;
+            final long deltaPacketsExpected = deltaPacketsReceived + deltaPacketsLost;
+
+            timestamps[head] = timestampUs / 1000.0;
+            sendBitrates[head] = Math.max(0, bytesSent - previousBytesSent) * 8 / seconds;
+            receiveBitrates[head] = Math.max(0, bytesReceived - previousBytesReceived) * 8 / seconds;
+            packetLossRates[head] = deltaPacketsExpected > 0 ? Math.max(0, deltaPacketsLost) / (double) deltaPacketsExpected : 0;
+            framesEncodedPerSecond[head] = Math.max(0, framesEncoded - previousFramesEncoded) / seconds;
+            framesDecodedPerSecond[head] = Math.max(0, framesDecoded - previousFramesDecoded) / seconds;
+
+            final int index = head;
+            head = (head + 1) % capacity;
+            count = Math.min(count + 1, capacity);
+
+            final WritableMap params = Arguments.createMap();
+            params.putString("valueTag", valueTag);
+            params.putMap("sample", sampleJsonValue(index));
+            sendDeviceEvent("peerConnectionStatsSample", params);
+        }
+
+        hasPrevious = true;
+        previousTimestampUs = timestampUs;
+        previousBytesSent = bytesSent;
+        previousBytesReceived = bytesReceived;
+        previousPacketsReceived = packetsReceived;
+        previousPacketsLost = packetsLost;
+        previousFramesEncoded = framesEncoded;
+        previousFramesDecoded = framesDecoded;
+    }
+
+    @NonNull
+    private WritableMap sampleJsonValue(final int index) {
+        final WritableMap json = Arguments.createMap();
+        json.putDouble("timestamp", timestamps[index]);
+        json.putDouble("sendBitrate", sendBitrates[index]);
+        json.putDouble("receiveBitrate", receiveBitrates[index]);
+        json.putDouble("packetLossRate", packetLossRates[index]);
+        json.putDouble("framesEncodedPerSecond", framesEncodedPerSecond[index]);
+        json.putDouble("framesDecodedPerSecond", framesDecodedPerSecond[index]);
+        return json;
+    }
+
+    /**
+     * 統計情報のカウンタ値を long として取り出します。
+     * libwebrtc は uint32 を Long、uint64 を BigInteger、int32 を Integer として渡してくるため、Number として扱います。
+     */
+    private static long longMember(@NonNull final Map<String, Object> members, @NonNull final String key) {
+        final Object value = members.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return 0;
+    }
+
+    /**
+     * Sends out an event to JavaScript.
+     * https://facebook.github.io/react-native/docs/native-modules-android#sending-events-to-javascript
+     */
+    private void sendDeviceEvent(@NonNull final String eventName,
+                                 @Nullable final WritableMap params) {
+        reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(eventName, params);
+    }
+
+}
@@ -0,0 +1,177 @@
+package jp.shiguredo.react.webrtckit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.webrtc.CameraEnumerationAndroid;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * getUserMedia() の映像の制約を満たすカメラデバイスとキャプチャフォーマットを選択します。
+ * <p>
+ * 必須の条件 (min, max, exact) をすべて満たすフォーマットのうち、ideal との距離 (W3C の fitness distance) が最も小さいものを選びます。
+ * 距離が同じであれば ideal の大きさを下回らないもの、次に 1 秒あたりの画素数が最も少ないものを選びます。
+ * 大きすぎるフォーマットでキャプチャして、エンコーダーの前で縮小するのを避けるためです。
+ * 幅と高さの ideal がどちらも指定されていない場合は、JS 側の既定値と同じ 1280x720 を ideal とします。
+ * 最も小さいフォーマットが選ばれないようにするためです。
+ */
+final class WebRTCVideoConstraintSolver {
+
+    /**
+     * 制約を満たすカメラデバイスがない場合に投げられます。constraint は満たせなかった制約の名前です。
+     */
+    static final class OverconstrainedException extends Exception {
+        @NonNull
+        final String constraint;
+
+        OverconstrainedException(@NonNull final String constraint) {
+            super("No camera device satisfies the constraint: " + constraint);
+            this.constraint = constraint;
+        }
+    }
+
+    private static final double ASPECT_RATIO_TOLERANCE = 0.01;
+    /**
+     * frameRate の ideal が指定されていない場合に目指すフレームレートです。
+     */
+    private static final int DEFAULT_FRAMERATE = 30;
+    /**
+     * 幅と高さの ideal がどちらも指定されていない場合に目指す大きさです。
+     */
+    private static final int DEFAULT_WIDTH = 1280;
+    private static final int DEFAULT_HEIGHT = 720;
+
+    private WebRTCVideoConstraintSolver() {
+    }
+
+    /**
+     * @return 最適な候補。カメラデバイスが 1 つもない場合は null
+     * @throws OverconstrainedException カメラデバイスはあるが、制約を満たすものがない場合
+     */
+    @Nullable
+    static WebRTCCameraDeviceCandidate solve(@NonNull final WebRTCCameraCatalog catalog,
+                                             @NonNull final WebRTCMediaStreamConstraints.Video video)
+            throws OverconstrainedException {
+        if (catalog.devices.length == 0) {
+            return null;
+        }
+        final WebRTCMediaStreamConstraints.Range width;
+        final WebRTCMediaStreamConstraints.Range height;
+        if (video.width.ideal == null && video.height.ideal == null) {
+            width = video.width.withDefaultIdeal(DEFAULT_WIDTH);
+            height = video.height.withDefaultIdeal(DEFAULT_HEIGHT);
+        } else {
+            width = video.width;
+            height = video.height;
+        }
+        // Key is the name of the constraint, Value is the number of devices or formats rejected by it.
+        final Map<String, Integer> failures = new LinkedHashMap<>();
+        WebRTCCameraDeviceCandidate best = null;
+        for (final WebRTCCameraCatalog.Device device : catalog.devices) {
+            final String facingMode = facingModeOf(device);
+            if (!video.deviceId.satisfies(device.name)) {
+                countFailure(failures, "deviceId");
+                continue;
+            }
+            if (!video.facingMode.satisfies(facingMode)) {
+                countFailure(failures, "facingMode");
+                continue;
+            }
+            final double deviceDistance = video.deviceId.distance(device.name) + video.facingMode.distance(facingMode);
+            for (final CameraEnumerationAndroid.CaptureFormat format : device.formats) {
+                final WebRTCCameraDeviceCandidate candidate = evaluate(device, format, deviceDistance, video, width, height, failures);
+                if (candidate != null && (best == null || candidate.compareTo(best) < 0)) {
+                    best = candidate;
+                }
+            }
+        }
+        if (best == null) {
+            throw new OverconstrainedException(mostFrequentFailure(failures));
+        }
+        return best;
+    }
+
+    /**
+     * フォーマットが必須の条件を満たす場合は候補を返し、満たさない場合は failures に記録して null を返します。
+     */
+    @Nullable
+    private static WebRTCCameraDeviceCandidate evaluate(@NonNull final WebRTCCameraCatalog.Device device,
+                                                        @NonNull final CameraEnumerationAndroid.CaptureFormat format,
+                                                        final double deviceDistance,
+                                                        @NonNull final WebRTCMediaStreamConstraints.Video video,
+                                                        @NonNull final WebRTCMediaStreamConstraints.Range width,
+                                                        @NonNull final WebRTCMediaStreamConstraints.Range height,
+                                                        @NonNull final Map<String, Integer> failures) {
+        if (!width.satisfies(format.width, 0)) {
+            countFailure(failures, "width");
+            return null;
+        }
+        if (!height.satisfies(format.height, 0)) {
+            countFailure(failures, "height");
+            return null;
+        }
+        final double aspectRatio = (double) format.width / format.height;
+        if (!video.aspectRatio.satisfies(aspectRatio, ASPECT_RATIO_TOLERANCE)) {
+            countFailure(failures, "aspectRatio");
+            return null;
+        }
+
+        // フォーマットが対応するフレームレートの範囲と、制約の範囲が重なっていれば満たせる
+        final WebRTCMediaStreamConstraints.Range frameRate = video.frameRate;
+        double lower = WebRTCCamera.minFramerate(format);
+        double upper = WebRTCCamera.maxFramerate(format);
+        if (frameRate.min != null) lower = Math.max(lower, frameRate.min);
+        if (frameRate.max != null) upper = Math.min(upper, frameRate.max);
+        if (frameRate.exact != null) {
+            lower = Math.max(lower, frameRate.exact);
+            upper = Math.min(upper, frameRate.exact);
+        }
+        if (lower > upper) {
+            countFailure(failures, "frameRate");
+            return null;
+        }
+        final double target = (frameRate.ideal != null) ? frameRate.ideal : DEFAULT_FRAMERATE;
+        final int framerate = (int) Math.round(Math.max(lower, Math.min(target, upper)));
+
+        final double distance = deviceDistance
+                + width.distance(format.width)
+                + height.distance(format.height)
+                + video.aspectRatio.distance(aspectRatio)
+                + frameRate.distance(framerate);
+        final boolean isCoveringIdealSize = (width.ideal == null || format.width >= width.ideal)
+                && (height.ideal == null || format.height >= height.ideal);
+        return new WebRTCCameraDeviceCandidate(device.name, format, framerate, distance, isCoveringIdealSize);
+    }
+
+    @Nullable
+    private static String facingModeOf(@NonNull final WebRTCCameraCatalog.Device device) {
+        if (device.isFrontFacing) return "user";
+        if (device.isBackFacing) return "environment";
+        return null;
+    }
+
+    private static void countFailure(@NonNull final Map<String, Integer> failures, @NonNull final String constraint) {
+        final Integer count = failures.get(constraint);
+        failures.put(constraint, (count == null) ? 1 : count + 1);
+    }
+
+    /**
+     * 最も多くの候補を除外した制約の名前を返します。
+     * フォーマットが 1 つもないなど、どの制約にも除外されなかった場合は deviceId とします。
+     */
+    @NonNull
+    private static String mostFrequentFailure(@NonNull final Map<String, Integer> failures) {
+        String constraint = "deviceId";
+        int max = 0;
+        for (final Map.Entry<String, Integer> entry : failures.entrySet()) {
+            if (entry.getValue() > max) {
+                constraint = entry.getKey();
+                max = entry.getValue();
+            }
+        }
+        return constraint;
+    }
+
+}
@@ -7,6 +7,7 @@ import android.view.ViewGroup;
 
 import com.facebook.react.uimanager.ThemedReactContext;
 
+import org.webrtc.RendererCommon;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoTrack;
 
@@ -16,9 +17,23 @@ public class WebRTCVideoView extends ViewGroup {
     @NonNull
     final SurfaceViewRenderer surfaceViewRenderer;
     private boolean isSurfaceViewRendererInitialized = false;
+    /**
+     * engine の生成完了を待って SurfaceViewRenderer を初期化しようとしている間 true になります。
+     */
+    private boolean isSurfaceViewRendererInitializing = false;
+    /**
+     * release() 済みの場合 true になります。engine の生成完了を待っている間に release() された場合に、初期化しないようにするためです。
+     */
+    private boolean isReleased = false;
     @Nullable
     private VideoTrack videoTrack = null;
     private boolean isVideoTrackRendererAdded = false;
+    /**
+     * 描画スレッドから参照するため、videoTrack の id を別に保持します。
+     * 破棄済みの videoTrack の id() を描画スレッドから呼び出さないようにするためです。
+     */
+    @Nullable
+    private volatile String videoTrackId = null;
 
 
     public WebRTCVideoView(@Nullable final Context context) {
@@ -35,15 +50,38 @@ public class WebRTCVideoView extends ViewGroup {
     @Override
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
-        if (!isSurfaceViewRendererInitialized) {
-            final ThemedReactContext reactContext = getReactContext();
-            final WebRTCModule module = reactContext.getNativeModule(WebRTCModule.class);
-            surfaceViewRenderer.init(module.getEglContext(), null);
-            isSurfaceViewRendererInitialized = true;
+        if (!isSurfaceViewRendererInitialized && !isSurfaceViewRendererInitializing) {
+            // XXX: engine の生成中に getEglContext() を呼び出すと UI スレッドが生成の完了まで止まってしまうため、
+            //      生成の完了を待ってから初期化する
+            isSurfaceViewRendererInitializing = true;
+            final WebRTCModule module = getReactContext().getNativeModule(WebRTCModule.class);
+            module.runWhenEngineReady(() -> initSurfaceViewRenderer(module));
         }
         attachVideoTrackWithRenderer();
     }
 
+    /**
+     * engine の生成完了後に UI スレッドから呼び出されます。
+     */
+    private void initSurfaceViewRenderer(@NonNull final WebRTCModule module) {
+        isSurfaceViewRendererInitializing = false;
+        if (isReleased || isSurfaceViewRendererInitialized) return;
+        surfaceViewRenderer.init(module.getEglContext(), new RendererCommon.RendererEvents() {
+            @Override
+            public void onFirstFrameRendered() {
+                // 描画スレッドから呼び出される
+                module.latencyTracer.recordTrack(videoTrackId, WebRTCLatencyTracer.FIRST_REMOTE_FRAME_RENDERED);
+            }
+
+            @Override
+            public void onFrameResolutionChanged(int videoWidth, int videoHeight, int rotation) {
+                // Do nothing
+            }
+        });
+        isSurfaceViewRendererInitialized = true;
+        attachVideoTrackWithRenderer();
+    }
+
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
@@ -84,6 +122,7 @@ public class WebRTCVideoView extends ViewGroup {
         }
         detachVideoTrackWithRenderer();
         this.videoTrack = videoTrack;
+        this.videoTrackId = (videoTrack != null) ? videoTrack.id() : null;
         attachVideoTrackWithRenderer();
     }
 
@@ -93,12 +132,14 @@ public class WebRTCVideoView extends ViewGroup {
      * なお内部に抱えているvideoTrackはdispose()されません。そちらは必要に応じて別途開放してください。
      */
     void release() {
+        isReleased = true;
         setVideoTrack(null);
         surfaceViewRenderer.release();
     }
 
     private void attachVideoTrackWithRenderer() {
-        if (videoTrack == null || isVideoTrackRendererAdded) return;
+        // SurfaceViewRenderer の初期化後に改めて呼び出される
+        if (!isSurfaceViewRendererInitialized || videoTrack == null || isVideoTrackRendererAdded) return;
         videoTrack.addSink(surfaceViewRenderer);
         isVideoTrackRendererAdded = true;
     }
@@ -17,6 +17,7 @@ export { RTCRtpParameters } from './src/PeerConnection/RTCRtpParameters';
 export { RTCRtpHeaderExtensionParameters } from './src/PeerConnection/RTCRtpParameters';
 export { RTCRtpEncodingParameters } from './src/PeerConnection/RTCRtpParameters';
 export { RTCRtpCodecParameters } from './src/PeerConnection/RTCRtpParameters';
+export { setLazyRtpParameters } from './src/PeerConnection/RTCRtpParameters';
 export { default as RTCSessionDescription } from './src/PeerConnection/RTCSessionDescription';
 export { default as RTCVideoView } from './src/VideoView/RTCVideoView';
 export { default as RTCMediaStream } from './src/MediaStream/RTCMediaStream';
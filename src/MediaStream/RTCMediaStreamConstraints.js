@@ -25,6 +25,30 @@ export type RTCAspectRatio =
     | '4:3'
     | '16:9'
 
+/**
+ * 数値の制約です。数値を指定した場合は `ideal` と同じ扱いになります。
+ *
+ * @typedef {Object} RTCConstrainNumberRange
+ * @since 2.1.0
+ */
+export type RTCConstrainNumberRange<T> = {
+    min?: T,
+    max?: T,
+    exact?: T,
+    ideal?: T
+}
+
+/**
+ * 文字列の制約です。文字列を指定した場合は `ideal` と同じ扱いになります。
+ *
+ * @typedef {Object} RTCConstrainString
+ * @since 2.1.0
+ */
+export type RTCConstrainString<T> = {
+    exact?: T,
+    ideal?: T
+}
+
 /**
  * @package
  */
@@ -38,6 +62,23 @@ export function aspectRatioValue(ratio: RTCAspectRatio | number | null): number
     }
 }
 
+/** @private */
+function aspectRatioConstraintValue(ratio: RTCAspectRatio | number | RTCConstrainNumberRange<RTCAspectRatio | number> | null | void): number | Object | null {
+    if (ratio === null || ratio === undefined) {
+        return null;
+    } else if (typeof ratio === 'object') {
+        var json = {};
+        for (const key of ['min', 'max', 'exact', 'ideal']) {
+            if (ratio[key] !== undefined) {
+                json[key] = aspectRatioValue(ratio[key]);
+            }
+        }
+        return json;
+    } else {
+        return aspectRatioValue(ratio);
+    }
+}
+
 /**
  * 映像に関する制約です。
  */
@@ -46,27 +87,34 @@ export class RTCMediaStreamVideoConstraints {
     /**
      * 使用するカメラの位置
      */
-    facingMode: RTCFacingMode | null;
+    facingMode: RTCFacingMode | RTCConstrainString<RTCFacingMode> | null;
+
+    /**
+     * 使用するカメラのデバイス ID。`enumerateDevices()` で取得できる `deviceId` を指定します。
+     *
+     * @since 2.1.0
+     */
+    deviceId: string | RTCConstrainString<string> | null;
 
     /**
      * 映像の幅
      */
-    width: number | null;
+    width: number | RTCConstrainNumberRange<number> | null;
 
     /**
      * 映像の高さ
      */
-    height: number | null;
+    height: number | RTCConstrainNumberRange<number> | null;
 
     /**
      * 映像のフレームレート
      */
-    frameRate: number | null;
+    frameRate: number | RTCConstrainNumberRange<number> | null;
 
     /**
      * アスペクト比
      */
-    aspectRatio: RTCAspectRatio | number | null;
+    aspectRatio: RTCAspectRatio | number | RTCConstrainNumberRange<RTCAspectRatio | number> | null;
 
 }
 
@@ -132,10 +180,11 @@ export default class RTCMediaStreamConstraints {
         if (video) {
             json.video = {
                 facingMode: video.facingMode,
+                deviceId: video.deviceId,
                 width: video.width,
                 height: video.height,
                 frameRate: video.frameRate,
-                aspectRatio: aspectRatioValue(video.aspectRatio)
+                aspectRatio: aspectRatioConstraintValue(video.aspectRatio)
             };
         }
         var audio = this.audio;
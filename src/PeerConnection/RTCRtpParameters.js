@@ -1,11 +1,39 @@
 // @flow
 
-import { NativeModules } from 'react-native';
+import { NativeModules, Platform } from 'react-native';
+import logger from '../Util/RTCLogger';
 import type { ValueTag } from './RTCPeerConnection';
 
 /** @private */
 const { WebRTCModule } = NativeModules;
 
+/** @private */
+export function nativeGetRtpParameters(valueTag: ValueTag): Promise<Object> {
+  return WebRTCModule.rtpParametersGet(valueTag);
+}
+
+/** @private */
+function nativeSetLazyRtpParameters(enabled: boolean) {
+  WebRTCModule.setLazyRtpParameters(enabled);
+}
+
+/**
+ * {@link RTCRtpSender} と {@link RTCRtpReceiver} のパラメーターを遅延取得するかどうかを設定します。(Android のみ)
+ * 有効にすると、トラックの追加時や受信時に `parameters` は `null` になります。
+ * パラメーターが必要な場合は `getParameters()` で取得してください。
+ * デフォルトでは無効です。
+ *
+ * @param {boolean} enabled `true` の場合、遅延取得を有効にします。
+ * @returns {void}
+ */
+export function setLazyRtpParameters(enabled: boolean) {
+  if (Platform.OS === 'android') {
+    nativeSetLazyRtpParameters(enabled);
+  } else {
+    logger.log("# setLazyRtpParameters() is available only on Android");
+  }
+}
+
 /**
  * RTCP に関するパラメーターです。
  * 
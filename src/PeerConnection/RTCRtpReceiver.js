@@ -1,7 +1,7 @@
 // @flow
 
 import RTCMediaStreamTrack from '../MediaStream/RTCMediaStreamTrack';
-import { RTCRtpParameters } from './RTCRtpParameters';
+import { RTCRtpParameters, nativeGetRtpParameters } from './RTCRtpParameters';
 import type { ValueTag } from './RTCPeerConnection';
 
 /**
@@ -18,8 +18,11 @@ export default class RTCRtpReceiver {
 
   /**
    * パラメーター
+   *
+   * {@link setLazyRtpParameters} で遅延取得を有効にした場合は `null` です。
+   * その場合は {@link RTCRtpReceiver#getParameters} で取得してください。
    */
-  parameters: RTCRtpParameters;
+  parameters: RTCRtpParameters | null;
 
   /**
    * トラック
@@ -41,11 +44,26 @@ export default class RTCRtpReceiver {
   constructor(info: Object) {
     this._valueTag = info.valueTag;
     this.receiverId = info.receiverId;
-    this.parameters = new RTCRtpParameters(this._valueTag, info.parameters);
+    this.parameters = info.parameters
+      ? new RTCRtpParameters(this._valueTag, info.parameters)
+      : null;
     if (info.track) {
       this.track = new RTCMediaStreamTrack(info.track);
     }
     this.streamIds = info.streamIds ? info.streamIds : [];
   }
 
+  /**
+   * 現在のパラメーターを取得します。
+   * 取得したパラメーターは `parameters` にも保持します。
+   *
+   * @return {Promise<RTCRtpParameters>}
+   */
+  getParameters(): Promise<RTCRtpParameters> {
+    return nativeGetRtpParameters(this._valueTag).then(info => {
+      this.parameters = new RTCRtpParameters(this._valueTag, info);
+      return this.parameters;
+    });
+  }
+
 }
\ No newline at end of file